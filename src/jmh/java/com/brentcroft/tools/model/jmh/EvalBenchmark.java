@@ -0,0 +1,57 @@
+package com.brentcroft.tools.model.jmh;
+
+import com.brentcroft.tools.model.Model;
+import com.brentcroft.tools.model.ModelItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of <code>eval()</code>, inline <code>steps()</code> and <code>call()</code>.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class EvalBenchmark
+{
+    private static final String STEPS = "$local.x = level; $local.y = x + 1;\n# not a step\n y";
+
+    private Model model;
+
+    @Setup
+    public void setUp()
+    {
+        model = new ModelItem().appendFromJson( "{"
+                + " 'level': 0,"
+                + " 'people': { 'green': { 'hue': 777 } },"
+                + " '$$increment': '$self.level = level + 1'"
+                + " }" );
+    }
+
+    @Benchmark
+    public Object evalPath()
+    {
+        return model.eval( "people.green.hue" );
+    }
+
+    @Benchmark
+    public Object evalExpression()
+    {
+        return model.eval( "people.green.hue * 2 + level" );
+    }
+
+    @Benchmark
+    public Object steps()
+    {
+        return model.steps( STEPS );
+    }
+
+    @Benchmark
+    public Object call()
+    {
+        return model.call( "$$increment" );
+    }
+}
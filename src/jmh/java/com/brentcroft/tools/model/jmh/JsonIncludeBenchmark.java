@@ -0,0 +1,61 @@
+package com.brentcroft.tools.model.jmh;
+
+import com.brentcroft.tools.model.Model;
+import com.brentcroft.tools.model.ModelItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a large JSON file as a <code>$json</code> include (streamed into the parser)
+ * compared with reading the same file into a String first.
+ * <p>
+ * Compare <code>gc.alloc.rate.norm</code> (bytes allocated per load) between the two.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class JsonIncludeBenchmark
+{
+    @Param( { "10000" } )
+    public int size;
+
+    private Path directory;
+    private String filename;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory( "el-model-jmh" );
+        filename = ModelGenerator.largeJson( directory, size );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        ModelGenerator.delete( directory );
+    }
+
+    @Benchmark
+    public Model includeFile()
+    {
+        Model model = new ModelItem();
+        model.setCurrentDirectory( directory );
+        return model.appendFromJson( "{ '$json': '" + filename + "' }" );
+    }
+
+    @Benchmark
+    public Model appendText() throws IOException
+    {
+        Model model = new ModelItem();
+        model.setCurrentDirectory( directory );
+        return model.appendFromJson( new String( Files.readAllBytes( directory.resolve( filename ) ), StandardCharsets.UTF_8 ) );
+    }
+}
@@ -0,0 +1,52 @@
+package com.brentcroft.tools.model.jmh;
+
+import com.brentcroft.tools.model.Model;
+import com.brentcroft.tools.model.ModelItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to materialize a model of each generated shape.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LoadBenchmark
+{
+    @Param( { "WIDE", "DEEP", "INCLUDES", "TEMPLATED" } )
+    public ModelGenerator shape;
+
+    @Param( { "100" } )
+    public int size;
+
+    private Path directory;
+    private String source;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory( "el-model-jmh" );
+        source = shape.source( directory, size );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        ModelGenerator.delete( directory );
+    }
+
+    @Benchmark
+    public Model load()
+    {
+        Model model = new ModelItem();
+        model.setCurrentDirectory( directory );
+        return model.appendFromJson( source );
+    }
+}
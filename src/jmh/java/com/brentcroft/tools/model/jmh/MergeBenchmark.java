@@ -0,0 +1,48 @@
+package com.brentcroft.tools.model.jmh;
+
+import com.brentcroft.tools.model.Model;
+import com.brentcroft.tools.model.ModelItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging a <code>WIDE</code> item into an empty item.
+ * <p>
+ * See <code>gc.alloc.rate.norm</code> for the bytes allocated per merge.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class MergeBenchmark
+{
+    @Param( { "10", "1000" } )
+    public int size;
+
+    private Model source;
+
+    @Setup
+    public void setUp()
+    {
+        source = new ModelItem().appendFromJson( ModelGenerator.wide( size ) );
+    }
+
+    @Benchmark
+    public Model filteredPutAll()
+    {
+        Model target = new ModelItem();
+        target.filteredPutAll( source );
+        return target;
+    }
+
+    @Benchmark
+    public Model putAll()
+    {
+        Model target = new ModelItem();
+        target.putAll( source );
+        return target;
+    }
+}
@@ -0,0 +1,182 @@
+package com.brentcroft.tools.model.jmh;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+
+/**
+ * Synthetic model sources for the benchmarks.
+ * <p>
+ * Each shape produces JSON text suitable for <code>Model.appendFromJson()</code>,
+ * writing any included files into the supplied directory.
+ */
+public enum ModelGenerator
+{
+    /**
+     * One item with <code>size</code> plain text entries and <code>size</code> numeric entries.
+     */
+    WIDE
+            {
+                @Override
+                public String source( Path directory, int size )
+                {
+                    return wide( size );
+                }
+            },
+
+    /**
+     * Items nested <code>size</code> deep, each under the key <code>child</code>.
+     */
+    DEEP
+            {
+                @Override
+                public String source( Path directory, int size )
+                {
+                    return deep( size );
+                }
+            },
+
+    /**
+     * An XML file with <code>size</code> models each including the same XML fragment.
+     */
+    INCLUDES
+            {
+                @Override
+                public String source( Path directory, int size ) throws IOException
+                {
+                    return includes( directory, size );
+                }
+            },
+
+    /**
+     * One item with <code>size</code> plain entries and <code>size</code> templated entries.
+     */
+    TEMPLATED
+            {
+                @Override
+                public String source( Path directory, int size )
+                {
+                    return templated( size );
+                }
+            };
+
+    public abstract String source( Path directory, int size ) throws IOException;
+
+    public static String wide( int size )
+    {
+        return IntStream
+                .range( 0, size )
+                .mapToObj( i -> format( "'plain%d': 'value-%d', 'number%d': %d", i, i, i, i ) )
+                .collect( Collectors.joining( ", ", "{ ", " }" ) );
+    }
+
+    public static String deep( int depth )
+    {
+        StringBuilder json = new StringBuilder();
+        IntStream
+                .range( 0, depth )
+                .forEach( i -> json.append( format( "{ 'level': %d, 'name': 'level-%d', 'child': ", i, i ) ) );
+        json.append( "{ 'leaf': true }" );
+        IntStream
+                .range( 0, depth )
+                .forEach( i -> json.append( " }" ) );
+        return json.toString();
+    }
+
+    /**
+     * The object path to the innermost item of a <code>DEEP</code> model.
+     *
+     * @param depth the depth of the model
+     * @return the object path
+     */
+    public static String deepPath( int depth )
+    {
+        return IntStream
+                .range( 0, depth )
+                .mapToObj( i -> "child" )
+                .collect( Collectors.joining( "." ) );
+    }
+
+    public static String includes( Path directory, int size ) throws IOException
+    {
+        Files.write(
+                directory.resolve( "fragment.xml" ),
+                Stream
+                        .concat(
+                                Stream.concat(
+                                        Stream.of( "<model key=\"cards\">" ),
+                                        IntStream
+                                                .range( 0, 13 )
+                                                .mapToObj( i -> format( "    <model key=\"card%d\"><integer key=\"rank\">%d</integer></model>", i, i ) ) ),
+                                Stream.of( "</model>" ) )
+                        .collect( Collectors.toList() ) );
+        Files.write(
+                directory.resolve( "includes.xml" ),
+                Stream
+                        .concat(
+                                Stream.concat(
+                                        Stream.of( "<includes>" ),
+                                        IntStream
+                                                .range( 0, size )
+                                                .mapToObj( i -> format( "    <model key=\"fragment%d\" xml=\"fragment.xml\"/>", i ) ) ),
+                                Stream.of( "</includes>" ) )
+                        .collect( Collectors.toList() ) );
+        return "{ '$xml': 'includes.xml' }";
+    }
+
+    /**
+     * Writes a JSON file of <code>size</code> records, both as a list of maps and as an object of items.
+     *
+     * @param directory the directory to write to
+     * @param size      the number of records
+     * @return the name of the written file
+     * @throws IOException if the file cannot be written
+     */
+    public static String largeJson( Path directory, int size ) throws IOException
+    {
+        final String record = "{ \"id\": %d, \"name\": \"record-%d\", \"amount\": %d.25, \"tags\": [ \"a\", \"b\", \"c\" ] }";
+        try ( BufferedWriter writer = Files.newBufferedWriter( directory.resolve( "large.json" ) ) )
+        {
+            writer.write( "{ \"records\": [\n" );
+            for ( int i = 0; i < size; i++ )
+            {
+                writer.write( format( record, i, i, i ) );
+                writer.write( i < size - 1 ? ",\n" : "\n" );
+            }
+            writer.write( "], \"index\": {\n" );
+            for ( int i = 0; i < size; i++ )
+            {
+                writer.write( format( "\"r%d\": " + record, i, i, i, i ) );
+                writer.write( i < size - 1 ? ",\n" : "\n" );
+            }
+            writer.write( "} }\n" );
+        }
+        return "large.json";
+    }
+
+    public static String templated( int size )
+    {
+        return IntStream
+                .range( 0, size )
+                .mapToObj( i -> format( "'plain%d': 'value-%d', 'templated%d': '${ plain%d }-${ base }'", i, i, i, i ) )
+                .collect( Collectors.joining( ", ", "{ 'base': 'root', ", " }" ) );
+    }
+
+    public static void delete( Path directory ) throws IOException
+    {
+        try ( Stream< Path > paths = Files.walk( directory ) )
+        {
+            for ( Path path : paths.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() ) )
+            {
+                Files.delete( path );
+            }
+        }
+    }
+}
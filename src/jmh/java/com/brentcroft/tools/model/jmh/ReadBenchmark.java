@@ -0,0 +1,55 @@
+package com.brentcroft.tools.model.jmh;
+
+import com.brentcroft.tools.model.Model;
+import com.brentcroft.tools.model.ModelItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads (with and without expansion) and serialization of a <code>TEMPLATED</code> model.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ReadBenchmark
+{
+    @Param( { "100" } )
+    public int size;
+
+    private Model model;
+
+    @Setup
+    public void setUp()
+    {
+        model = new ModelItem().appendFromJson( ModelGenerator.templated( size ) );
+    }
+
+    @Benchmark
+    public Object getPlain()
+    {
+        return model.get( "plain0" );
+    }
+
+    @Benchmark
+    public Object getTemplated()
+    {
+        return model.get( "templated0" );
+    }
+
+    @Benchmark
+    public String expand()
+    {
+        return model.expand( "${ plain0 }/${ base }" );
+    }
+
+    @Benchmark
+    @OutputTimeUnit( TimeUnit.MICROSECONDS )
+    public String toJson()
+    {
+        return model.toJson();
+    }
+}
@@ -0,0 +1,59 @@
+package com.brentcroft.tools.model.jmh;
+
+import com.brentcroft.tools.model.Model;
+import com.brentcroft.tools.model.ModelItem;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Navigation of a <code>DEEP</code> model from its innermost item.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class TreeBenchmark
+{
+    @Param( { "10", "50" } )
+    public int depth;
+
+    private Model root;
+    private Model leaf;
+    private String leafPath;
+
+    @Setup
+    public void setUp()
+    {
+        root = new ModelItem().appendFromJson( ModelGenerator.deep( depth ) );
+        leafPath = ModelGenerator.deepPath( depth );
+        leaf = root.getItem( leafPath );
+    }
+
+    @Benchmark
+    public String path()
+    {
+        return leaf.path();
+    }
+
+    @Benchmark
+    public Model getRoot()
+    {
+        return leaf.getRoot();
+    }
+
+    @Benchmark
+    public Model getItem()
+    {
+        return root.getItem( leafPath );
+    }
+
+    @Benchmark
+    @OutputTimeUnit( TimeUnit.MICROSECONDS )
+    public String toJson()
+    {
+        return root.toJson();
+    }
+}
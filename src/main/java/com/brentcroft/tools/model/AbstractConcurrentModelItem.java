@@ -0,0 +1,400 @@
+package com.brentcroft.tools.model;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * An AbstractModelItem that can be shared between threads.
+ * <p>
+ * Every access to the underlying map is guarded by a read-write lock,
+ * so any number of threads can read while writes are exclusive.
+ * Expansion and evaluation happen outside the lock.
+ * <p>
+ * The keys are also kept, in order, in an array that is only copied again after keys have been added or removed,
+ * so iterating, or calling <code>forEach()</code>, copies nothing while the keys are unchanged.
+ * Iteration is weakly consistent: it reads each value as it is reached,
+ * skips keys removed meanwhile, and does not see keys added after it started.
+ * <code>entrySet()</code>, <code>keySet()</code> and <code>values()</code> are views
+ * that pass queries, removals and updates through to this item (see {@link ItemViews}).
+ * <p>
+ * <code>putAll()</code> and <code>filteredPutAll()</code> copy the supplied entries before taking the write lock,
+ * so two items can be put into each other at once without deadlock.
+ * Otherwise, a lock is only taken while holding the lock of an ancestor, never of a descendant:
+ * a Model put into this item is parented before the write lock is taken,
+ * and a written fork is stored in its parent fork only after its own write lock is released.
+ * <p>
+ * The name, parent and cached values of every AbstractModelItem are volatile,
+ * so an item is safely published to other threads once it has been put into a shared item.
+ * <p>
+ * Deferred includes are loaded before taking any lock.
+ */
+public abstract class AbstractConcurrentModelItem extends AbstractModelItem
+{
+    /**
+     * Read in place of the value of a key that is no longer present.
+     */
+    private static final Object ABSENT = new Object();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The keys in order, or null once keys have been added or removed (see {@link #keys()}).
+     */
+    private volatile String[] keys;
+
+    /**
+     * Set when a fork is written under the write lock,
+     * so it is stored in its parent fork once the lock is released (see {@link #forkWritten()}).
+     */
+    private volatile boolean forkWrittenPending;
+
+    private < T > T read( Supplier< T > reader )
+    {
+        resolvePendingIncludes();
+        return readStored( reader );
+    }
+
+    /**
+     * Reads under the read lock without loading any deferred includes,
+     * for reads of the stored entries only.
+     */
+    private < T > T readStored( Supplier< T > reader )
+    {
+        final Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            return reader.get();
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    private < T > T write( Supplier< T > writer )
+    {
+        resolvePendingIncludes();
+        final Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        final T result;
+        try
+        {
+            result = writer.get();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+        if ( forkWrittenPending && ! lock.isWriteLockedByCurrentThread() )
+        {
+            forkWrittenPending = false;
+            super.forkWritten();
+        }
+        return result;
+    }
+
+    /**
+     * Writes, forgetting the order of the keys, since keys may be added or removed.
+     */
+    private < T > T writeKeys( Supplier< T > writer )
+    {
+        return write( () -> {
+            keys = null;
+            return writer.get();
+        } );
+    }
+
+    /**
+     * Defers storing a written fork in its parent fork until the write lock is released.
+     */
+    @Override
+    protected void forkWritten()
+    {
+        if ( lock.isWriteLockedByCurrentThread() )
+        {
+            forkWrittenPending = true;
+        }
+        else
+        {
+            super.forkWritten();
+        }
+    }
+
+    /**
+     * The keys in order, copied under the read lock if keys have been added or removed since they were last copied.
+     * <p>
+     * The copy is stored under the read lock, which excludes any write that would forget it.
+     */
+    private String[] keys()
+    {
+        final String[] current = keys;
+        if ( current != null )
+        {
+            return current;
+        }
+        return read( () -> {
+            final String[] copy = keyArray();
+            keys = copy;
+            return copy;
+        } );
+    }
+
+    /**
+     * The stored value of a key, or ABSENT if the key is not present, read under one read lock.
+     */
+    private Object rawOrAbsent( String key )
+    {
+        return read( () -> super.containsKey( key )
+                           ? super.getRaw( key )
+                           : ABSENT );
+    }
+
+    /**
+     * The entries in the order of the keys, skipping any keys removed since the keys were copied.
+     */
+    private Iterator< Map.Entry< String, Object > > entries()
+    {
+        final String[] order = keys();
+        return new Iterator< Map.Entry< String, Object > >()
+        {
+            private int index = 0;
+            private Map.Entry< String, Object > next;
+
+            @Override
+            public boolean hasNext()
+            {
+                while ( next == null && index < order.length )
+                {
+                    final String key = order[ index++ ];
+                    final Object value = rawOrAbsent( key );
+                    if ( value != ABSENT )
+                    {
+                        next = new AbstractMap.SimpleImmutableEntry<>( key, value );
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry< String, Object > next()
+            {
+                if ( ! hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+                final Map.Entry< String, Object > entry = next;
+                next = null;
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    protected Object getRaw( Object key )
+    {
+        return read( () -> super.getRaw( key ) );
+    }
+
+    @Override
+    public Object getOrDefault( Object key, Object defaultValue )
+    {
+        return read( () -> super.getOrDefault( key, defaultValue ) );
+    }
+
+    @Override
+    protected Collection< Object > ownValues()
+    {
+        return readStored( () -> new ArrayList<>( super.ownValues() ) );
+    }
+
+    @Override
+    Map< String, Object > storedEntries()
+    {
+        return readStored( super::storedEntries );
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return read( () -> super.containsKey( key ) );
+    }
+
+    @Override
+    public boolean containsValue( Object value )
+    {
+        return read( () -> super.containsValue( value ) );
+    }
+
+    @Override
+    public int size()
+    {
+        return read( super::size );
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return read( super::isEmpty );
+    }
+
+    @Override
+    public Set< Map.Entry< String, Object > > entrySet()
+    {
+        return ItemViews.entrySet( this, this::entries );
+    }
+
+    @Override
+    public Set< String > keySet()
+    {
+        return ItemViews.keySet( this, this::entries );
+    }
+
+    @Override
+    public Collection< Object > values()
+    {
+        return ItemViews.values( this, this::entries );
+    }
+
+    @Override
+    public void forEach( BiConsumer< ? super String, ? super Object > action )
+    {
+        entries().forEachRemaining( entry -> action.accept( entry.getKey(), entry.getValue() ) );
+    }
+
+    /**
+     * Only forgets the order of the keys when the key is new.
+     */
+    @Override
+    public Object set( String key, Object value )
+    {
+        return write( () -> {
+            if ( ! containsOwnKey( key ) )
+            {
+                keys = null;
+            }
+            return super.set( key, value );
+        } );
+    }
+
+    @Override
+    public Object remove( Object key )
+    {
+        return writeKeys( () -> super.remove( key ) );
+    }
+
+    @Override
+    public boolean remove( Object key, Object value )
+    {
+        return writeKeys( () -> super.remove( key, value ) );
+    }
+
+    @Override
+    public void clear()
+    {
+        writeKeys( () -> {
+            super.clear();
+            return null;
+        } );
+    }
+
+    /**
+     * Parents any Models before taking the write lock, and then sets every entry under the lock.
+     */
+    @Override
+    public void putAll( Map< ? extends String, ? > item )
+    {
+        final Map< String, Object > entries = new LinkedHashMap<>( item );
+        entries.values().forEach( value -> {
+            if ( value instanceof Model )
+            {
+                ( ( Model ) value ).setParent( this );
+            }
+        } );
+        writeKeys( () -> {
+            entries.forEach( super::set );
+            return null;
+        } );
+    }
+
+    @Override
+    protected Set< String > putAbsentEntries( Map< ? extends String, ? > entries )
+    {
+        final Map< String, Object > copy = new LinkedHashMap<>( entries );
+        return writeKeys( () -> super.putAbsentEntries( copy ) );
+    }
+
+    @Override
+    protected void attachChildFork( String key, Model child )
+    {
+        writeKeys( () -> {
+            super.attachChildFork( key, child );
+            return null;
+        } );
+    }
+
+    @Override
+    protected void replaceEntries( Collection< String > oldKeys, Map< String, Object > newEntries )
+    {
+        writeKeys( () -> {
+            super.replaceEntries( oldKeys, newEntries );
+            return null;
+        } );
+    }
+
+    @Override
+    public Object putIfAbsent( String key, Object value )
+    {
+        return writeKeys( () -> super.putIfAbsent( key, value ) );
+    }
+
+    @Override
+    public Object computeIfAbsent( String key, Function< ? super String, ? > mappingFunction )
+    {
+        return writeKeys( () -> super.computeIfAbsent( key, mappingFunction ) );
+    }
+
+    @Override
+    public Object computeIfPresent( String key, BiFunction< ? super String, ? super Object, ? > remappingFunction )
+    {
+        return writeKeys( () -> super.computeIfPresent( key, remappingFunction ) );
+    }
+
+    @Override
+    public Object compute( String key, BiFunction< ? super String, ? super Object, ? > remappingFunction )
+    {
+        return writeKeys( () -> super.compute( key, remappingFunction ) );
+    }
+
+    @Override
+    public Object merge( String key, Object value, BiFunction< ? super Object, ? super Object, ? > remappingFunction )
+    {
+        return writeKeys( () -> super.merge( key, value, remappingFunction ) );
+    }
+
+    @Override
+    public Object replace( String key, Object value )
+    {
+        return write( () -> super.replace( key, value ) );
+    }
+
+    @Override
+    public boolean replace( String key, Object oldValue, Object newValue )
+    {
+        return write( () -> super.replace( key, oldValue, newValue ) );
+    }
+
+    @Override
+    public void replaceAll( BiFunction< ? super String, ? super Object, ? > function )
+    {
+        write( () -> {
+            super.replaceAll( function );
+            return null;
+        } );
+    }
+}
@@ -3,12 +3,16 @@ package com.brentcroft.tools.model;
 import com.brentcroft.tools.el.MapBindings;
 import com.brentcroft.tools.materializer.Materializer;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.json.JsonReadFeature;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import org.xml.sax.InputSource;
@@ -21,10 +25,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static java.lang.String.format;
@@ -34,9 +45,32 @@ import static java.lang.String.format;
 public abstract class AbstractModelItem extends LinkedHashMap< String, Object > implements Model
 {
     public static String OPERATION_DELAY_MILLIS = "$operationDelayMillis";
+    public static final String CURRENT_DIRECTORY = "$currentDirectory";
+    public static final String PARALLEL_INCLUDES = "$parallelIncludes";
+    public static final String CACHE_INCLUDES = "$cacheIncludes";
+    public static final String LAZY_INCLUDES = "$lazyIncludes";
+    public static final String MEMOIZE_EXPANSIONS = "$memoizeExpansions";
+
+    /**
+     * Keys starting with any of these are not merged by <code>filteredPutAll</code>
+     * (n.b. <code>$properties</code> also covers <code>$properties-xml</code>).
+     */
+    private static final String[] RESERVED_KEY_PREFIXES = {
+            "$onload",
+            "$json",
+            "$xml",
+            "$properties",
+            CURRENT_DIRECTORY
+    };
 
     private static final ThreadLocal< Stack< Path > > pathStack = ThreadLocal.withInitial( Stack::new );
 
+    /**
+     * The items whose deferred includes are being loaded by the current thread,
+     * or by the thread that forked the current task (see {@link #resolvePendingIncludes()}).
+     */
+    private static final ThreadLocal< Set< AbstractModelItem > > resolvingItems = ThreadLocal.withInitial( AbstractModelItem::newResolvingSet );
+
     public static final Materializer< Properties > PROPERTIES_XML_MATERIALIZER = new Materializer<>(
             () -> PropertiesRootTag.ROOT,
             Properties::new );
@@ -52,6 +86,9 @@ public abstract class AbstractModelItem extends LinkedHashMap< String, Object >
 
     public static DefaultPrettyPrinter PRETTY_PRINTER = new DefaultPrettyPrinter();
 
+    private static volatile ObjectWriter jsonWriter;
+    private static volatile DefaultPrettyPrinter jsonWriterPrinter;
+
 
     public static Map< String, Object > staticModel;
     public static ThreadLocal< Stack< MapBindings > > scopeStack;
@@ -67,12 +104,34 @@ public abstract class AbstractModelItem extends LinkedHashMap< String, Object >
         //PRETTY_PRINTER.indentArraysWith( DefaultIndenter.SYSTEM_LINEFEED_INSTANCE );
     }
 
+    /**
+     * A writer using <code>PRETTY_PRINTER</code>, created once and then reused,
+     * until <code>PRETTY_PRINTER</code> is replaced.
+     * <p>
+     * The writer never closes the target of a generator it creates.
+     *
+     * @return the shared JSON writer
+     */
+    public static ObjectWriter getJsonWriter()
+    {
+        final DefaultPrettyPrinter printer = PRETTY_PRINTER;
+        ObjectWriter writer = jsonWriter;
+        if ( writer == null || jsonWriterPrinter != printer )
+        {
+            writer = JSON_MAPPER
+                    .writer( printer )
+                    .without( JsonGenerator.Feature.AUTO_CLOSE_TARGET );
+            jsonWriter = writer;
+            jsonWriterPrinter = printer;
+        }
+        return writer;
+    }
+
     public static String stringify( Object value )
     {
         try
         {
-            return JSON_MAPPER
-                    .writer( PRETTY_PRINTER )
+            return getJsonWriter()
                     .writeValueAsString( value );
         }
         catch ( JsonProcessingException e )
@@ -81,6 +140,15 @@ public abstract class AbstractModelItem extends LinkedHashMap< String, Object >
         }
     }
 
+    /**
+     * Reads the whole of a file as text.
+     *
+     * @param file the file to read
+     * @return the lines of the file, joined by newlines
+     * @deprecated JSON and XML includes are now streamed from their files, so nothing here needs this any more;
+     * it remains only for subclasses that still call it
+     */
+    @Deprecated
     protected static String readFileFully( File file )
     {
         try
@@ -95,314 +163,1917 @@ public abstract class AbstractModelItem extends LinkedHashMap< String, Object >
         }
     }
 
-    private String name = "?";
-    private Map< String, Object > parent;
+    private volatile String name = "?";
+    private volatile Map< String, Object > parent;
 
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile String cachedPath;
 
-    public Object get( Object key )
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile Model cachedRoot;
+
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile Path cachedCurrentDirectory;
+
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile ModelMetrics metrics;
+
+    /**
+     * The files included into the tree of this item, when this item is the root.
+     */
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile Set< File > sourceFiles;
+
+    /**
+     * The files included into this item, and the keys they contributed.
+     */
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile List< IncludeRecord > includeRecords;
+
+    /**
+     * Loads the deferred includes of this item, if any (see {@link #isLazyIncludes()}).
+     */
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile PendingIncludes pendingIncludes;
+
+
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile ModelEventDispatcher eventDispatcher;
+
+    /**
+     * The copy-on-write state of this item, if it is a fork (see {@link #newFork(Model)}).
+     */
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile ForkOverlay overlay;
+
+    /**
+     * The value of <code>$memoizeExpansions</code> on this item (see {@link #isMemoizeExpansions()}).
+     */
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile boolean memoizeExpansions;
+
+    /**
+     * The memoizing state of the tree of this item, cached until the parent of this item or of an ancestor is changed.
+     */
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile ExpansionMemo.Tree memoTree;
+
+    /**
+     * The memoized expansions of this item, by key (see {@link ExpansionMemo}).
+     */
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile Map< String, ExpansionMemo.Memo > memos;
+
+    /**
+     * The memoized expansions depending on each key of this item.
+     */
+    @Getter( AccessLevel.NONE )
+    @Setter( AccessLevel.NONE )
+    private transient volatile Map< Object, Set< ExpansionMemo.Ref > > dependents;
+
+    /**
+     * Creates a new item of the same class as the base item,
+     * that reads through to the base for any key it does not hold itself.
+     * <p>
+     * Entries are only stored in the fork when they are put or set,
+     * and removing a key hides the base entry with a tombstone.
+     * Child Models of the base are read as forks that are only stored in the fork once they are written,
+     * so changes to descendants of the fork never reach the base,
+     * and reading or sizing a fork copies nothing, while iterating it copies only the keys of its new entries.
+     * The views of a fork write through to it, like those of any other item.
+     * <p>
+     * The state of a fork is kept in a {@link ForkOverlay}.
+     * The base should not be changed while it has forks,
+     * and any cached values of a fork (e.g. current directory) are not invalidated by changes to the base.
+     * Clearing a fork detaches it from its base.
+     *
+     * @param base the item to fork
+     * @return a new fork of the base item
+     */
+    public static Model newFork( Model base )
     {
-        if ( key == null )
+        final Model item = base.newItem();
+        if ( ! ( item instanceof AbstractModelItem ) )
         {
-            return null;
+            throw new ModelException( format( "Cannot fork item of class: %s", item.getClass().getSimpleName() ) );
         }
-        return Optional
-                .ofNullable( super.get( key ) )
-                .map( p -> p instanceof String ? expand( ( String ) p ) : p )
-                .orElse( null );
+        final AbstractModelItem fork = ( AbstractModelItem ) item;
+        fork.name = base.getName();
+        fork.parent = base.getParent();
+        fork.overlay = new ForkOverlay( fork, base );
+        return fork;
     }
 
-    public Object put( String key, Object value )
+    /**
+     * True if this item is a fork of another item, and so reads through to it.
+     *
+     * @return true if this item is a fork
+     */
+    public boolean isFork()
     {
-        if ( value instanceof Model )
+        return overlay != null;
+    }
+
+    /**
+     * Stores a child fork in this fork once it has been written,
+     * unless the key has since been set or removed in this fork,
+     * and then stores this fork in its parent fork, if it has not been already.
+     *
+     * @param key   the key of the child
+     * @param child the child fork
+     */
+    protected void attachChildFork( String key, Model child )
+    {
+        final ForkOverlay o = overlay;
+        if ( o != null && o.attachChildFork( key, child ) )
         {
-            ( ( Model ) value ).setParent( this );
+            forkWritten();
         }
-        return super.put( key, value );
     }
 
     /**
-     * Bypasses checking for Models and calls super.put(key, value).
+     * Called after each write to a fork, so that a child fork is stored in its parent fork.
+     * <p>
+     * Subclasses guarding their entries with a lock should call this after releasing the lock,
+     * so that locks are only ever taken from an item to its descendants.
      */
-    public Object set( String key, Object value )
+    protected void forkWritten()
+    {
+        final Map< String, Object > p = parent;
+        if ( p instanceof AbstractModelItem )
+        {
+            ( ( AbstractModelItem ) p ).attachChildFork( name, this );
+        }
+    }
+
+    /*
+     * The entries stored in the map of this item itself,
+     * which for a fork are only those written to it (see ForkOverlay).
+     */
+
+    final boolean containsOwnKey( Object key )
+    {
+        return super.containsKey( key );
+    }
+
+    final Object getOwn( Object key )
+    {
+        return super.get( key );
+    }
+
+    final Object putOwn( String key, Object value )
     {
         return super.put( key, value );
     }
 
-    public Path getCurrentDirectory()
+    final Object removeOwn( Object key )
     {
-        return Optional
-                .ofNullable( ( String ) get( "$currentDirectory" ) )
-                .map( Paths::get )
-                .orElseGet( () -> Optional
-                        .ofNullable( getParent() )
-                        .filter( p -> p instanceof Model )
-                        .map( p -> ( ( Model ) p ).getCurrentDirectory() )
-                        .orElse( Paths.get( "." ) ) );
+        return super.remove( key );
     }
 
-    public void setCurrentDirectory( Path directoryPath )
+    final int ownSize()
     {
-        File directory = directoryPath.toFile();
-        if ( ! directory.exists() )
-        {
-            throw new ModelException( format( "Directory does not exist: %s", directory.getPath() ) );
-        }
-        if ( ! directory.isDirectory() )
-        {
-            throw new ModelException( format( "Not a directory: %s", directory.getPath() ) );
-        }
+        return super.size();
+    }
 
-        File cd = getCurrentDirectory().toFile();
-        if ( ! cd.equals( directory ) )
-        {
-            put( "$currentDirectory", directoryPath.toString() );
-        }
+    final Set< String > ownKeySet()
+    {
+        return super.keySet();
     }
 
-    public Model newItemFromJson( String jsonText )
+    /**
+     * The keys of this item, in order, without reading any values.
+     *
+     * @return a copy of the keys
+     */
+    final String[] keyArray()
     {
-        try
-        {
-            return JSON_MAPPER.readValue( jsonText, getModelClass() );
-        }
-        catch ( JsonProcessingException e )
-        {
-            throw new ModelException( format( "JSON text failed to materialize: %s", jsonText ), e );
-        }
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.keySet().toArray( new String[ 0 ] )
+               : o.keys().toArray( String[]::new );
     }
 
-    public void introspectEntries()
+    public void setName( String name )
     {
-        if ( containsKey( "$json" ) )
+        if ( ! Objects.equals( this.name, name ) )
         {
-            Stream
-                    .of( get( "$json" ).toString().split( "\\s*,\\s*" ) )
-                    .map( String::trim )
-                    .filter( filename -> ! filename.isEmpty() )
-                    .forEach( filename -> {
-                        File file = getLocalFile( filename );
-                        putOnFileStack( file.toPath() );
-                        try
-                        {
-                            setCurrentDirectory( file.getParentFile().toPath() );
-                            appendFromJson( AbstractModelItem.readFileFully( file ) );
-                        }
-                        finally
-                        {
-                            pathStack.get().pop();
-                        }
-                    } );
+            this.name = name;
+            invalidateTreeCaches();
         }
-        if ( containsKey( "$xml" ) )
+    }
+
+    public void setParent( Map< String, Object > parent )
+    {
+        if ( this.parent != parent )
         {
-            Object xmlValue = get( "$xml" );
-            Stream
-                    .of( xmlValue.toString().split( "\\s*,\\s*" ) )
-                    .map( String::trim )
-                    .filter( filename -> ! filename.isEmpty() )
-                    .forEach( filename -> {
-                        File file = getLocalFile( filename );
-                        putOnFileStack( file.toPath() );
-                        try
-                        {
-                            InputSource is = new InputSource( new FileInputStream( file ) );
-                            is.setSystemId( file.getAbsolutePath() );
-                            appendFromXml( is );
-                        }
-                        catch ( FileNotFoundException e )
-                        {
-                            throw new ModelException( format( "Bad $xml filename: %s", filename ), e );
-                        }
-                        finally
-                        {
-                            pathStack.get().pop();
-                        }
-                    } );
+            this.parent = parent;
+            invalidateTreeCaches();
         }
-        if ( containsKey( "$properties" ) )
+    }
+
+    /**
+     * Clears the cached path, root and current directory of this item and of its descendants.
+     * <p>
+     * Computing any of these values for an item also computes it for every ancestor it depends on,
+     * so when this item has no cached values neither do its dependent descendants.
+     */
+    private void invalidateTreeCaches()
+    {
+        if ( cachedPath == null && cachedRoot == null && cachedCurrentDirectory == null && memoTree == null )
         {
-            Stream
-                    .of( get( "$properties" ).toString().split( "\\s*,\\s*" ) )
-                    .map( String::trim )
-                    .filter( filename -> ! filename.isEmpty() )
-                    .forEach( filename -> overwritePropertiesFromFile( filename, false ) );
+            return;
         }
-        if ( containsKey( "$properties-xml" ) )
+        cachedPath = null;
+        cachedRoot = null;
+        cachedCurrentDirectory = null;
+        memoTree = null;
+        children().forEach( AbstractModelItem::invalidateTreeCaches );
+    }
+
+    private void invalidateCurrentDirectory()
+    {
+        if ( cachedCurrentDirectory == null )
         {
-            Stream
-                    .of( get( "$properties-xml" ).toString().split( "\\s*,\\s*" ) )
-                    .map( String::trim )
-                    .filter( filename -> ! filename.isEmpty() )
-                    .forEach( filename -> overwritePropertiesFromFile( filename, true ) );
+            return;
         }
-        if ( containsKey( "$onload" ) )
+        cachedCurrentDirectory = null;
+        children().forEach( AbstractModelItem::invalidateCurrentDirectory );
+    }
+
+    /**
+     * The values of this item that are AbstractModelItems having this item as their parent.
+     */
+    private Stream< AbstractModelItem > children()
+    {
+        final ForkOverlay o = overlay;
+        return Stream
+                .concat(
+                        ownValues().stream(),
+                        o == null
+                        ? Stream.empty()
+                        : o.childForks() )
+                .filter( value -> value instanceof AbstractModelItem )
+                .map( value -> ( AbstractModelItem ) value )
+                .filter( child -> child.getParent() == this );
+    }
+
+    /**
+     * The object path is cached, until the name or parent of this item or of an ancestor is changed.
+     *
+     * @return the object path to this Model item
+     */
+    @Override
+    public String path()
+    {
+        if ( cachedPath == null )
         {
-            eval( get( "$onload" ).toString() );
+            final Map< String, Object > p = getParent();
+            if ( p instanceof Model )
+            {
+                final String parentPath = ( ( Model ) p ).path();
+                cachedPath = parentPath.isEmpty()
+                             ? getName()
+                             : parentPath + "." + getName();
+            }
+            else
+            {
+                // root does not appear in any path
+                cachedPath = "";
+            }
         }
+        return cachedPath;
     }
 
-    protected void putOnFileStack( Path path )
+    /**
+     * The root is cached, until the parent of this item or of an ancestor is changed.
+     *
+     * @return the root item
+     */
+    @Override
+    public Model getRoot()
     {
-        if ( ! pathStack.get().isEmpty() && pathStack.get().stream()
-                .anyMatch( p -> p.equals( path ) ) )
+        if ( cachedRoot == null )
         {
-            throw new CircularityException( format( "File: '%s' is already on the stack", path ) );
+            final Map< String, Object > p = getParent();
+            cachedRoot = p instanceof Model
+                         ? ( ( Model ) p ).getRoot()
+                         : this;
         }
-        pathStack.get().push( path );
+        return cachedRoot;
     }
 
-    public File getLocalFile( String filePath )
+
+    /**
+     * Enables (or with null, disables) the recording of metrics by this item and its descendants.
+     * <p>
+     * Every item records into the metrics of its root,
+     * so metrics should be set on the root item.
+     *
+     * @param metrics the metrics to record into
+     */
+    public void setMetrics( ModelMetrics metrics )
     {
-        return Optional
-                .of( new File( filePath ) )
-                .filter( File::exists )
-                .orElseGet( () -> {
-                    File cd = getCurrentDirectory().toFile();
-                    return Optional
-                            .of( new File( cd, filePath ) )
-                            .filter( File::exists )
-                            .orElseThrow( () -> new IllegalArgumentException( format( "Local file does not exist: %s/%s", cd, filePath ) ) );
-                } );
+        this.metrics = metrics;
     }
 
-    public void putAll( Map< ? extends String, ? > item )
+    /**
+     * The metrics of the root item (see {@link ModelMetrics}).
+     *
+     * @return the metrics of the root item, or null if metrics are not enabled
+     */
+    @Override
+    public ModelMetrics getMetrics()
     {
-        super.putAll( item
-                .entrySet()
-                .stream()
-                .peek( entry -> {
-                    if ( entry.getValue() instanceof Model )
-                    {
-                        ( ( Model ) entry.getValue() ).setParent( this );
-                    }
-                } )
-                .collect( Collectors.toMap( Map.Entry::getKey, Map.Entry::getValue ) ) );
+        final Model root = getRoot();
+        return root == this
+               ? metrics
+               : root.getMetrics();
     }
 
-    public void filteredPutAll( Map< ? extends String, ? > item )
+    /**
+     * Sets (or with null, removes) the dispatcher of events fired by this item and its descendants.
+     * <p>
+     * Every item fires events to the dispatcher of its root,
+     * so the dispatcher should be set on the root item.
+     *
+     * @param eventDispatcher the event dispatcher
+     */
+    public void setEventDispatcher( ModelEventDispatcher eventDispatcher )
     {
-        putAll( item
-                .entrySet()
-                .stream()
-                .filter( entry -> ! containsKey( entry.getKey() ) )
-                .filter( entry -> ! entry.getKey().startsWith( "$onload" ) )
-                .filter( entry -> ! entry.getKey().startsWith( "$json" ) )
-                .filter( entry -> ! entry.getKey().startsWith( "$xml" ) )
-                .filter( entry -> ! entry.getKey().startsWith( "$properties" ) )
-                .filter( entry -> ! entry.getKey().startsWith( "$properties-xml" ) )
-                .filter( entry -> ! entry.getKey().startsWith( "$currentDirectory" ) )
-                .collect( Collectors.toMap( Map.Entry::getKey, Map.Entry::getValue ) ) );
+        this.eventDispatcher = eventDispatcher;
+    }
+
+    /**
+     * The event dispatcher of the root item (see {@link ModelEventDispatcher}).
+     *
+     * @return the event dispatcher of the root item, or null if there is none
+     */
+    @Override
+    public ModelEventDispatcher getEventDispatcher()
+    {
+        final Model root = getRoot();
+        return root == this
+               ? eventDispatcher
+               : root.getEventDispatcher();
     }
 
-    @SuppressWarnings( "unchecked" )
-    private void overwritePropertiesFromFile( String propertiesFilePath, boolean isXml )
+    /**
+     * The files that have been included into the tree of the root item,
+     * by <code>$json</code>, <code>$xml</code>, <code>$properties</code> or <code>$properties-xml</code>,
+     * or that were recorded in a snapshot read into the tree.
+     *
+     * @return the absolute source files, in the order they were first included
+     */
+    public Collection< File > getSourceFiles()
     {
-        File file = new File( propertiesFilePath );
-        if ( ! file.exists() )
+        final Model root = getRoot();
+        if ( root != this )
         {
-            file = new File( getCurrentDirectory().toFile(), propertiesFilePath );
+            return root instanceof AbstractModelItem
+                   ? ( ( AbstractModelItem ) root ).getSourceFiles()
+                   : Collections.emptyList();
         }
+        final Set< File > files = sourceFiles;
+        return files == null
+               ? Collections.emptyList()
+               : new ArrayList<>( files );
+    }
 
-        Properties p;
-        try ( FileInputStream fis = new FileInputStream( file ) )
+    /**
+     * Adds a file to the source files of the root item,
+     * and records it as touched by any cached include being loaded (see {@link IncludeCache}).
+     *
+     * @param file an included file
+     */
+    void addSourceFile( File file )
+    {
+        IncludeCache.touched( file );
+        addRootSourceFile( file );
+    }
+
+    private void addRootSourceFile( File file )
+    {
+        final Model root = getRoot();
+        if ( root != this )
         {
-            if ( isXml )
+            if ( root instanceof AbstractModelItem )
             {
-                p = PROPERTIES_XML_MATERIALIZER.apply( new InputSource( fis ) );
+                ( ( AbstractModelItem ) root ).addRootSourceFile( file );
             }
-            else
+            return;
+        }
+        if ( sourceFiles == null )
+        {
+            synchronized ( this )
             {
-                p = new Properties();
-                p.load( fis );
+                if ( sourceFiles == null )
+                {
+                    sourceFiles = Collections.synchronizedSet( new LinkedHashSet<>() );
+                }
             }
         }
-        catch ( Exception e )
+        sourceFiles.add( file.getAbsoluteFile() );
+    }
+
+    public Object get( Object key )
+    {
+        if ( key == null )
         {
-            throw new ModelException( format( "Properties file not found: %s", file ), e );
+            return null;
         }
-        Function< String, String > uptoAnyPlaceHolder = value -> {
-            int phi = value.indexOf( "{0}" );
-            if ( phi > - 1 )
-            {
-                return value.substring( 0, phi );
-            }
+        final Object value = getRaw( key );
+        if ( ! ( value instanceof String ) )
+        {
             return value;
-        };
-        p.forEach( ( k, v ) -> {
-            final String ref = k.toString().trim();
-            final String value = uptoAnyPlaceHolder.apply( v.toString().trim() );
-            final String[] segs = ref.split( "\\s*\\.\\s*" );
-            Map< String, Object > target = this;
-            for ( int i = 0, n = segs.length; i < n; i++ )
+        }
+        final String text = ( String ) value;
+        if ( ! Model.isExpandable( text ) )
+        {
+            return text;
+        }
+        return isMemoizeExpansions()
+               ? ExpansionMemo.expand( this, key.toString(), text, () -> expand( text ) )
+               : expand( text );
+    }
+
+    /**
+     * True if <code>$memoizeExpansions</code> is true on the root item.
+     * <p>
+     * When true, the expanded value of an entry is memoized,
+     * along with every entry read while expanding it,
+     * and is only expanded again once one of those entries has been put, set or removed
+     * (see {@link ExpansionMemo}).
+     * <p>
+     * Only templates whose values depend on nothing but the entries of the tree should be memoized:
+     * e.g. a template calling <code>now()</code> would keep its first value.
+     *
+     * @return true if expansions are memoized
+     */
+    public boolean isMemoizeExpansions()
+    {
+        final AbstractModelItem root = getMemoTree().getRoot();
+        return root != null && root.memoizeExpansions;
+    }
+
+    /**
+     * The memoizing state of the tree of this item, held by the root item (see {@link ExpansionMemo}).
+     *
+     * @return the memoizing state of the tree
+     */
+    ExpansionMemo.Tree getMemoTree()
+    {
+        final ExpansionMemo.Tree tree = memoTree;
+        if ( tree != null )
+        {
+            return tree;
+        }
+        final Model root = getRoot();
+        if ( root == this )
+        {
+            synchronized ( this )
             {
-                final Object segValue = target.get( segs[ i ] );
-                if ( segValue instanceof Map )
+                if ( memoTree == null )
                 {
-                    target = ( Map< String, Object > ) segValue;
-                    continue;
+                    memoTree = new ExpansionMemo.Tree( this );
                 }
-                final String key = Arrays
-                        .stream( segs, i, n )
-                        .collect( Collectors.joining( "." ) );
-
-                target.put( key, value );
+                return memoTree;
             }
-        } );
+        }
+        final ExpansionMemo.Tree rootTree = root instanceof AbstractModelItem
+                                            ? ( ( AbstractModelItem ) root ).getMemoTree()
+                                            : new ExpansionMemo.Tree( null );
+        memoTree = rootTree;
+        return rootTree;
     }
 
-    @Override
-    public String toJson()
+    Map< String, ExpansionMemo.Memo > getMemos()
     {
-        try
+        if ( memos == null )
         {
-            return JSON_MAPPER
-                    .writer( PRETTY_PRINTER )
-                    .writeValueAsString( this );
+            synchronized ( this )
+            {
+                if ( memos == null )
+                {
+                    memos = new ConcurrentHashMap<>();
+                }
+            }
         }
-        catch ( JsonProcessingException e )
+        return memos;
+    }
+
+    Map< Object, Set< ExpansionMemo.Ref > > getDependents()
+    {
+        if ( dependents == null )
         {
-            throw new ModelException( format( "ModelItem at path: %s", path() ), e );
+            synchronized ( this )
+            {
+                if ( dependents == null )
+                {
+                    dependents = new ConcurrentHashMap<>();
+                }
+            }
         }
+        return dependents;
     }
 
-    @Override
-    public String toString()
+    Set< ExpansionMemo.Ref > getDependents( Object key )
     {
-        return path();
+        return getDependents().computeIfAbsent( key, k -> ConcurrentHashMap.newKeySet() );
+    }
+
+    /**
+     * The stored value for a key, without any expansion.
+     *
+     * @param key the key
+     * @return the stored value or null
+     */
+    protected Object getRaw( Object key )
+    {
+        resolvePendingIncludes();
+        ExpansionMemo.recordRead( this, key );
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.get( key )
+               : o.get( key );
+    }
+
+    /**
+     * The values stored in this item itself, excluding any values of a fork base that have not been written.
+     *
+     * @return the values stored in this item
+     */
+    protected Collection< Object > ownValues()
+    {
+        return super.values();
     }
 
     @Override
-    public Model getSelf()
+    public boolean containsKey( Object key )
     {
-        return this;
+        resolvePendingIncludes();
+        ExpansionMemo.recordRead( this, key );
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.containsKey( key )
+               : o.containsKey( key );
     }
 
     @Override
-    public Object steps( String steps, Map< String, Object > argMap )
+    public boolean containsValue( Object value )
     {
-        return new Steps( steps ).run( argMap );
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.containsValue( value )
+               : o.containsValue( value );
     }
 
-    public void maybeDelay()
+    @Override
+    public Object getOrDefault( Object key, Object defaultValue )
     {
-        try
-        {
-            long delay = ( long ) getOrDefault( OPERATION_DELAY_MILLIS, 100L );
-            Thread.sleep( delay );
-        }
-        catch ( InterruptedException e )
-        {
-            e.printStackTrace();
-        }
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.getOrDefault( key, defaultValue )
+               : o.asMap().getOrDefault( key, defaultValue );
     }
 
-    class Steps
+    /**
+     * The entries of a fork are a view that reads through to its base,
+     * and writes through to the fork (see {@link ItemViews}).
+     */
+    @Override
+    public Set< Map.Entry< String, Object > > entrySet()
     {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.entrySet()
+               : ItemViews.entrySet( this, o::entries );
+    }
+
+    @Override
+    public Set< String > keySet()
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.keySet()
+               : ItemViews.keySet( this, o::entries );
+    }
+
+    @Override
+    public Collection< Object > values()
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.values()
+               : ItemViews.values( this, o::entries );
+    }
+
+    @Override
+    public int size()
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        return o == null
+               ? super.size()
+               : o.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    @Override
+    public void forEach( BiConsumer< ? super String, ? super Object > action )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o == null )
+        {
+            super.forEach( action );
+        }
+        else
+        {
+            o.entries().forEachRemaining( entry -> action.accept( entry.getKey(), entry.getValue() ) );
+        }
+    }
+
+    public Object put( String key, Object value )
+    {
+        if ( value instanceof Model )
+        {
+            ( ( Model ) value ).setParent( this );
+        }
+        return set( key, value );
+    }
+
+    /**
+     * Bypasses checking for Models and calls super.put(key, value).
+     */
+    public Object set( String key, Object value )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        final Object previous;
+        if ( o == null )
+        {
+            previous = super.put( key, value );
+        }
+        else
+        {
+            previous = o.set( key, value );
+            forkWritten();
+        }
+        entryChanged( key );
+        return previous;
+    }
+
+    @Override
+    public Object remove( Object key )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        final Object previous;
+        if ( o == null )
+        {
+            previous = super.remove( key );
+        }
+        else
+        {
+            previous = o.remove( key );
+            forkWritten();
+        }
+        entryChanged( key );
+        return previous;
+    }
+
+    @Override
+    public void clear()
+    {
+        resolvePendingIncludes();
+        super.clear();
+        if ( overlay != null )
+        {
+            forkWritten();
+            overlay = null;
+        }
+        memoizeExpansions = false;
+        invalidateCurrentDirectory();
+        if ( memos != null || dependents != null )
+        {
+            ExpansionMemo.cleared( this );
+        }
+    }
+
+    /*
+     * The compound operations call entryChanged for any key they change.
+     *
+     * The compound operations of a fork are the Map defaults (see ForkOverlay.asMap),
+     * going through getRaw, containsKey, put and remove, and so see the base entries.
+     */
+
+    @Override
+    public boolean remove( Object key, Object value )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            return o.asMap().remove( key, value );
+        }
+        final boolean removed = super.remove( key, value );
+        if ( removed )
+        {
+            entryChanged( key );
+        }
+        return removed;
+    }
+
+    @Override
+    public Object putIfAbsent( String key, Object value )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            return o.asMap().putIfAbsent( key, value );
+        }
+        final Object current = super.putIfAbsent( key, value );
+        if ( current == null )
+        {
+            entryChanged( key );
+        }
+        return current;
+    }
+
+    @Override
+    public Object computeIfAbsent( String key, Function< ? super String, ? > mappingFunction )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            return o.asMap().computeIfAbsent( key, mappingFunction );
+        }
+        final boolean absent = super.get( key ) == null;
+        final Object value = super.computeIfAbsent( key, mappingFunction );
+        if ( absent && value != null )
+        {
+            entryChanged( key );
+        }
+        return value;
+    }
+
+    @Override
+    public Object computeIfPresent( String key, BiFunction< ? super String, ? super Object, ? > remappingFunction )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            return o.asMap().computeIfPresent( key, remappingFunction );
+        }
+        final boolean present = super.get( key ) != null;
+        final Object value = super.computeIfPresent( key, remappingFunction );
+        if ( present )
+        {
+            entryChanged( key );
+        }
+        return value;
+    }
+
+    @Override
+    public Object compute( String key, BiFunction< ? super String, ? super Object, ? > remappingFunction )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            return o.asMap().compute( key, remappingFunction );
+        }
+        final Object value = super.compute( key, remappingFunction );
+        entryChanged( key );
+        return value;
+    }
+
+    @Override
+    public Object merge( String key, Object value, BiFunction< ? super Object, ? super Object, ? > remappingFunction )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            return o.asMap().merge( key, value, remappingFunction );
+        }
+        final Object merged = super.merge( key, value, remappingFunction );
+        entryChanged( key );
+        return merged;
+    }
+
+    @Override
+    public Object replace( String key, Object value )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            return o.asMap().replace( key, value );
+        }
+        final boolean present = super.containsKey( key );
+        final Object previous = super.replace( key, value );
+        if ( present )
+        {
+            entryChanged( key );
+        }
+        return previous;
+    }
+
+    @Override
+    public boolean replace( String key, Object oldValue, Object newValue )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            return o.asMap().replace( key, oldValue, newValue );
+        }
+        final boolean replaced = super.replace( key, oldValue, newValue );
+        if ( replaced )
+        {
+            entryChanged( key );
+        }
+        return replaced;
+    }
+
+    @Override
+    public void replaceAll( BiFunction< ? super String, ? super Object, ? > function )
+    {
+        resolvePendingIncludes();
+        final ForkOverlay o = overlay;
+        if ( o != null )
+        {
+            o.asMap().replaceAll( function );
+            return;
+        }
+        super.replaceAll( function );
+        new ArrayList<>( super.keySet() ).forEach( this::entryChanged );
+    }
+
+    /**
+     * Called after the entry for a key is put, set or removed.
+     *
+     * @param key the key of the changed entry
+     */
+    private void entryChanged( Object key )
+    {
+        if ( CURRENT_DIRECTORY.equals( key ) )
+        {
+            invalidateCurrentDirectory();
+        }
+        else if ( MEMOIZE_EXPANSIONS.equals( key ) )
+        {
+            memoizeExpansions = Boolean.parseBoolean( String.valueOf( super.get( key ) ) );
+        }
+        if ( memos != null || dependents != null || isMemoizeExpansions() )
+        {
+            ExpansionMemo.changed( this, key );
+        }
+    }
+
+    /**
+     * The current directory is cached,
+     * until <code>$currentDirectory</code> is changed on this item or an ancestor,
+     * or the parent of this item or of an ancestor is changed.
+     * <p>
+     * A templated <code>$currentDirectory</code> value is expanded on every call, and not cached.
+     *
+     * @return the current directory
+     */
+    public Path getCurrentDirectory()
+    {
+        if ( cachedCurrentDirectory != null )
+        {
+            return cachedCurrentDirectory;
+        }
+        final Object value = getRaw( CURRENT_DIRECTORY );
+        final Map< String, Object > p = getParent();
+        final Path currentDirectory;
+        final boolean cacheable;
+        if ( value != null )
+        {
+            final String text = value.toString();
+            currentDirectory = Paths.get( expand( text ) );
+            cacheable = ! Model.isExpandable( text );
+        }
+        else if ( p instanceof AbstractModelItem )
+        {
+            currentDirectory = ( ( AbstractModelItem ) p ).getCurrentDirectory();
+            cacheable = ( ( AbstractModelItem ) p ).cachedCurrentDirectory != null;
+        }
+        else if ( p instanceof Model )
+        {
+            currentDirectory = ( ( Model ) p ).getCurrentDirectory();
+            cacheable = false;
+        }
+        else
+        {
+            currentDirectory = Paths.get( "." );
+            cacheable = true;
+        }
+        if ( cacheable )
+        {
+            cachedCurrentDirectory = currentDirectory;
+        }
+        return currentDirectory;
+    }
+
+    public void setCurrentDirectory( Path directoryPath )
+    {
+        File directory = directoryPath.toFile();
+        if ( ! directory.exists() )
+        {
+            throw new ModelException( format( "Directory does not exist: %s", directory.getPath() ) );
+        }
+        if ( ! directory.isDirectory() )
+        {
+            throw new ModelException( format( "Not a directory: %s", directory.getPath() ) );
+        }
+
+        File cd = getCurrentDirectory().toFile();
+        if ( ! cd.equals( directory ) )
+        {
+            put( CURRENT_DIRECTORY, directoryPath.toString() );
+        }
+    }
+
+    /**
+     * Builds the new child item directly from the JSON token stream (see {@link JsonModelBuilder}),
+     * rather than reading nested maps and then transforming them into Models.
+     */
+    @Override
+    public Model newChild( Map< String, Object > parent, String jsonText )
+    {
+        try ( JsonParser parser = JSON_MAPPER.createParser( jsonText ) )
+        {
+            return new JsonModelBuilder( this ).build( parser, parent, item -> {
+            } );
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( format( "JSON text failed to materialize: %s", jsonText ), e );
+        }
+    }
+
+    /**
+     * Constructs a new child item by streaming the JSON file into the parser,
+     * without first reading the file into a String.
+     *
+     * @param parent              the parent of the new child item
+     * @param file                the JSON file
+     * @param beforeIntrospection applied to the new child item before introspection
+     * @return the new child item
+     */
+    private Model newChild( Map< String, Object > parent, File file, Consumer< Model > beforeIntrospection )
+    {
+        try ( JsonParser parser = JSON_MAPPER.createParser( file ) )
+        {
+            return new JsonModelBuilder( this ).build( parser, parent, beforeIntrospection );
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( format( "JSON file failed to materialize: %s", file ), e );
+        }
+    }
+
+    /**
+     * Loads the includes of this item, and then applies any properties files and <code>$onload</code> steps.
+     * <p>
+     * When includes are lazy, and this item has any <code>$json</code> or <code>$xml</code> includes,
+     * all of this is deferred until the entries of this item are first accessed.
+     */
+    public void introspectEntries()
+    {
+        if ( isLazyIncludes() && ( containsKey( "$json" ) || containsKey( "$xml" ) ) )
+        {
+            deferIncludes();
+            return;
+        }
+        introspectEntriesNow();
+    }
+
+    /**
+     * Defers loading the includes of this item until its entries are first accessed,
+     * with the file stack of the calling thread.
+     */
+    private void deferIncludes()
+    {
+        final List< Path > callerStack = new ArrayList<>( pathStack.get() );
+        pendingIncludes = new PendingIncludes( () -> {
+            final Set< AbstractModelItem > resolving = resolvingItems.get();
+            resolving.add( this );
+            try
+            {
+                withFileStack( callerStack, () -> {
+                    introspectEntriesNow();
+                    return null;
+                } );
+            }
+            finally
+            {
+                resolving.remove( this );
+            }
+        } );
+    }
+
+    /**
+     * The entries stored in this item, in order, without loading any deferred includes.
+     *
+     * @return a copy of the stored entries
+     */
+    Map< String, Object > storedEntries()
+    {
+        final Map< String, Object > entries = new LinkedHashMap<>();
+        final ForkOverlay o = overlay;
+        if ( o == null )
+        {
+            super.forEach( entries::put );
+        }
+        else
+        {
+            o.entries().forEachRemaining( entry -> entries.put( entry.getKey(), entry.getValue() ) );
+        }
+        return entries;
+    }
+
+    /**
+     * Copies the include records of the source item to this item (see {@link IncludeCache#copyOf(Model, Map)}),
+     * and defers loading the includes of this item if those of the source have not been loaded.
+     *
+     * @param source the item this item is a copy of
+     */
+    void copyIncludesOf( AbstractModelItem source )
+    {
+        final List< IncludeRecord > records = source.includeRecords;
+        if ( records != null )
+        {
+            records.forEach( record -> addIncludeRecord( new IncludeRecord(
+                    this,
+                    record.getFile(),
+                    record.getKind(),
+                    new LinkedHashSet<>( record.getKeys() ) ) ) );
+        }
+        if ( source.isIncludePending() )
+        {
+            deferIncludes();
+        }
+    }
+
+    /**
+     * True if this item has includes that are deferred and not yet loaded.
+     *
+     * @return true if includes are pending
+     */
+    public boolean isIncludePending()
+    {
+        return pendingIncludes != null;
+    }
+
+    /**
+     * Runs any deferred includes on the calling thread, the first time this item is accessed.
+     * <p>
+     * Any other thread accessing this item meanwhile waits until the includes are loaded (see {@link PendingIncludes}),
+     * while accesses made by the includes themselves pass straight through,
+     * including those made by the tasks loading parallel includes (see {@link #forkIncludes(List, Function)}),
+     * which carry the resolving items of the thread that forked them.
+     * <p>
+     * If the includes failed to load, every access raises the failure.
+     * <p>
+     * Every read calls this, so once an item has no pending includes
+     * it costs no more than reading the field of that item.
+     */
+    protected void resolvePendingIncludes()
+    {
+        final PendingIncludes pending = pendingIncludes;
+        if ( pending != null )
+        {
+            resolvePendingIncludes( pending );
+        }
+    }
+
+    private void resolvePendingIncludes( PendingIncludes pending )
+    {
+        if ( resolvingItems.get().contains( this ) )
+        {
+            return;
+        }
+        if ( pending.resolve( this ) )
+        {
+            pendingIncludes = null;
+        }
+    }
+
+    private static Set< AbstractModelItem > newResolvingSet()
+    {
+        return Collections.newSetFromMap( new IdentityHashMap<>() );
+    }
+
+    private void introspectEntriesNow()
+    {
+        if ( containsKey( "$json" ) )
+        {
+            List< String > filenames = includeFilenames( "$json" );
+            if ( isParallelIncludes( filenames ) )
+            {
+                List< File > files = localFiles( filenames );
+                List< Model > items = forkIncludes( files, file -> cachedInclude( file, f -> newChild(
+                        this,
+                        f,
+                        item -> item.put( CURRENT_DIRECTORY, f.getParentFile().toPath().toString() ) ) ) );
+                for ( int i = 0; i < files.size(); i++ )
+                {
+                    mergeInclude( files.get( i ), IncludeRecord.Kind.JSON, items.get( i ) );
+                }
+                setCurrentDirectory( files.get( files.size() - 1 ).getParentFile().toPath() );
+            }
+            else
+            {
+                filenames.forEach( filename -> {
+                    File file = getLocalFile( filename );
+                    putOnFileStack( file.toPath() );
+                    try
+                    {
+                        setCurrentDirectory( file.getParentFile().toPath() );
+                        mergeInclude( file, IncludeRecord.Kind.JSON, cachedInclude( file, f -> newChild( this, f, item -> {
+                        } ) ) );
+                    }
+                    finally
+                    {
+                        pathStack.get().pop();
+                    }
+                } );
+            }
+        }
+        if ( containsKey( "$xml" ) )
+        {
+            List< String > filenames = includeFilenames( "$xml" );
+            if ( isParallelIncludes( filenames ) )
+            {
+                List< File > files = localFiles( filenames );
+                List< Model > items = forkIncludes( files, file -> cachedInclude( file, this::newChildFromXmlFile ) );
+                for ( int i = 0; i < files.size(); i++ )
+                {
+                    mergeInclude( files.get( i ), IncludeRecord.Kind.XML, items.get( i ) );
+                }
+            }
+            else
+            {
+                filenames.forEach( filename -> {
+                    File file = getLocalFile( filename );
+                    putOnFileStack( file.toPath() );
+                    try
+                    {
+                        mergeInclude( file, IncludeRecord.Kind.XML, cachedInclude( file, this::newChildFromXmlFile ) );
+                    }
+                    finally
+                    {
+                        pathStack.get().pop();
+                    }
+                } );
+            }
+        }
+        if ( containsKey( "$properties" ) )
+        {
+            overwritePropertiesFromFiles( includeFilenames( "$properties" ), false );
+        }
+        if ( containsKey( "$properties-xml" ) )
+        {
+            overwritePropertiesFromFiles( includeFilenames( "$properties-xml" ), true );
+        }
+        if ( containsKey( "$onload" ) )
+        {
+            eval( get( "$onload" ).toString() );
+        }
+    }
+
+    private List< String > includeFilenames( String key )
+    {
+        return Stream
+                .of( get( key ).toString().split( "\\s*,\\s*" ) )
+                .map( String::trim )
+                .filter( filename -> ! filename.isEmpty() )
+                .collect( Collectors.toList() );
+    }
+
+    private List< File > localFiles( List< String > filenames )
+    {
+        return filenames
+                .stream()
+                .map( this::getLocalFile )
+                .collect( Collectors.toList() );
+    }
+
+    /**
+     * Materializes a new child item of this item from an XML file, closing the file once it is read.
+     */
+    private Model newChildFromXmlFile( File file )
+    {
+        try ( FileInputStream fis = new FileInputStream( file ) )
+        {
+            InputSource is = new InputSource( fis );
+            is.setSystemId( file.getAbsolutePath() );
+            return newChildFromXml( this, is );
+        }
+        catch ( FileNotFoundException e )
+        {
+            throw new ModelException( format( "Bad $xml filename: %s", file ), e );
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( format( "Failed to close $xml file: %s", file ), e );
+        }
+    }
+
+    /**
+     * True if <code>$parallelIncludes</code> is true on this item or its nearest ancestor that has it,
+     * and there is more than one file to include.
+     *
+     * @param filenames the files to be included
+     * @return true if the files should be loaded in parallel
+     */
+    private boolean isParallelIncludes( List< String > filenames )
+    {
+        return filenames.size() > 1 && isParallelIncludes();
+    }
+
+    /**
+     * True if <code>$parallelIncludes</code> is true on this item,
+     * or else on its nearest ancestor that has a value.
+     * <p>
+     * When true, the files listed in <code>$json</code> (and then in <code>$xml</code>)
+     * are read and materialized concurrently on a dedicated ForkJoin pool,
+     * and then merged into this item in declaration order,
+     * as are the files listed in <code>$properties</code> (and then in <code>$properties-xml</code>),
+     * which are read concurrently and then applied in declaration order.
+     * The files must be independent of each other,
+     * and are all resolved relative to this item's current directory.
+     *
+     * @return true if includes are loaded in parallel
+     */
+    public boolean isParallelIncludes()
+    {
+        return isInheritedFlag( PARALLEL_INCLUDES );
+    }
+
+    /**
+     * True if <code>$cacheIncludes</code> is true on this item,
+     * or else on its nearest ancestor that has a value.
+     * <p>
+     * When true, each included file is materialized once
+     * and deep copies are handed out to every includer (see {@link IncludeCache}).
+     *
+     * @return true if includes are cached
+     */
+    public boolean isCacheIncludes()
+    {
+        return isInheritedFlag( CACHE_INCLUDES );
+    }
+
+    /**
+     * True if <code>$lazyIncludes</code> is true on this item,
+     * or else on its nearest ancestor that has a value.
+     * <p>
+     * When true, the <code>$json</code> and <code>$xml</code> includes of an item
+     * (along with its properties files and <code>$onload</code> steps)
+     * are not loaded until the entries of the item are first accessed,
+     * so branches that are never used are never read.
+     * <p>
+     * Only the includes of child items are deferred:
+     * the includes of an item being appended to (e.g. by <code>appendFromJson</code>) are loaded at once,
+     * since the appended entries, including those of its includes, are merged into the item straight away.
+     *
+     * @return true if includes are loaded on first access
+     */
+    public boolean isLazyIncludes()
+    {
+        return isInheritedFlag( LAZY_INCLUDES );
+    }
+
+    private boolean isInheritedFlag( String key )
+    {
+        final Object value = get( key );
+        if ( value != null )
+        {
+            return Boolean.parseBoolean( value.toString() );
+        }
+        return getParent() instanceof AbstractModelItem
+                && ( ( AbstractModelItem ) getParent() ).isInheritedFlag( key );
+    }
+
+    private Model cachedInclude( File file, Function< File, Model > loader )
+    {
+        addSourceFile( file );
+        return isCacheIncludes()
+               ? IncludeCache.SHARED.get( file, this, loader )
+               : loader.apply( file );
+    }
+
+    /**
+     * Loads each file as a separate ForkJoin task on the include pool (see <code>StepExecutor.includes()</code>),
+     * each task starting with a copy of the calling thread's file stack,
+     * so circularity is detected as if the files were loaded sequentially.
+     *
+     * @param files  the files to load
+     * @param loader loads a file
+     * @param <T>    the type of loaded item
+     * @return the loaded items in the same order as the files
+     */
+    private < T > List< T > forkIncludes( List< File > files, Function< File, T > loader )
+    {
+        final List< Path > callerStack = new ArrayList<>( pathStack.get() );
+        final Set< AbstractModelItem > callerResolving = resolvingItems.get();
+        final List< Set< File > > callerLoads = IncludeCache.currentLoads();
+        final List< ForkJoinTask< T > > tasks = files
+                .stream()
+                .map( file -> ForkJoinTask.adapt( () -> IncludeCache.withLoads(
+                        callerLoads,
+                        () -> withResolvingItems( callerResolving, () -> onFileStack( callerStack, file, loader ) ) ) ) )
+                .collect( Collectors.toList() );
+        final ForkJoinPool pool = StepExecutor.includes();
+        if ( ForkJoinTask.getPool() == pool )
+        {
+            ForkJoinTask.invokeAll( tasks );
+        }
+        else
+        {
+            pool.invoke( ForkJoinTask.adapt( () -> ForkJoinTask.invokeAll( tasks ) ) );
+        }
+        return tasks
+                .stream()
+                .map( ForkJoinTask::join )
+                .collect( Collectors.toList() );
+    }
+
+    /**
+     * Runs the action with a copy of the supplied resolving items as the resolving items of the current thread.
+     */
+    private static < T > T withResolvingItems( Set< AbstractModelItem > callerResolving, Supplier< T > action )
+    {
+        final Set< AbstractModelItem > previous = resolvingItems.get();
+        final Set< AbstractModelItem > resolving = newResolvingSet();
+        resolving.addAll( callerResolving );
+        resolvingItems.set( resolving );
+        try
+        {
+            return action.get();
+        }
+        finally
+        {
+            resolvingItems.set( previous );
+        }
+    }
+
+    private < T > T onFileStack( List< Path > callerStack, File file, Function< File, T > loader )
+    {
+        return withFileStack( callerStack, () -> {
+            putOnFileStack( file.toPath() );
+            return loader.apply( file );
+        } );
+    }
+
+    /**
+     * Runs the action with a copy of the supplied file stack as the file stack of the current thread.
+     */
+    private static < T > T withFileStack( List< Path > callerStack, Supplier< T > action )
+    {
+        final Stack< Path > previous = pathStack.get();
+        final Stack< Path > stack = new Stack<>();
+        stack.addAll( callerStack );
+        pathStack.set( stack );
+        try
+        {
+            return action.get();
+        }
+        finally
+        {
+            pathStack.set( previous );
+        }
+    }
+
+    /**
+     * Runs the action on the shared step executor (see {@link StepExecutor}),
+     * carrying copies of the scope stack and file stack of the current thread into the task,
+     * so the action sees the same local scopes, and detects the same circular includes, as the caller.
+     *
+     * @param action the action to run
+     * @param <T>    the type of the result
+     * @return a future of the result of the action
+     */
+    public static < T > CompletableFuture< T > supplyAsync( Supplier< T > action )
+    {
+        return supplyAsync( CompletableFuture.completedFuture( null ), action );
+    }
+
+    /**
+     * Runs the action on the shared step executor once the supplied future completes (see {@link #supplyAsync(Supplier)}),
+     * carrying the scope stack and file stack the current thread has now,
+     * and holding no thread while waiting.
+     *
+     * @param after  the future to wait for
+     * @param action the action to run
+     * @param <T>    the type of the result
+     * @return a future of the result of the action
+     */
+    public static < T > CompletableFuture< T > supplyAsync( CompletableFuture< ? > after, Supplier< T > action )
+    {
+        final List< MapBindings > callerScopes = scopeStack == null
+                                                 ? Collections.emptyList()
+                                                 : new ArrayList<>( scopeStack.get() );
+        final List< Path > callerStack = new ArrayList<>( pathStack.get() );
+        return after.thenApplyAsync(
+                ignored -> withScopeStack( callerScopes, () -> withFileStack( callerStack, action ) ),
+                StepExecutor.get() );
+    }
+
+    /**
+     * Runs the action with a copy of the supplied scopes as the scope stack of the current thread.
+     */
+    private static < T > T withScopeStack( List< MapBindings > callerScopes, Supplier< T > action )
+    {
+        if ( scopeStack == null )
+        {
+            return action.get();
+        }
+        final Stack< MapBindings > previous = scopeStack.get();
+        final Stack< MapBindings > stack = new Stack<>();
+        stack.addAll( callerScopes );
+        scopeStack.set( stack );
+        try
+        {
+            return action.get();
+        }
+        finally
+        {
+            scopeStack.set( previous );
+        }
+    }
+
+    protected void putOnFileStack( Path path )
+    {
+        if ( ! pathStack.get().isEmpty() && pathStack.get().stream()
+                .anyMatch( p -> p.equals( path ) ) )
+        {
+            throw new CircularityException( format( "File: '%s' is already on the stack", path ) );
+        }
+        pathStack.get().push( path );
+    }
+
+    /**
+     * Puts each entry in turn, so Model values are parented to this item,
+     * without building any intermediate map.
+     *
+     * @param item the entries to put
+     */
+    @Override
+    public void putAll( Map< ? extends String, ? > item )
+    {
+        item.forEach( this::put );
+    }
+
+    /**
+     * Puts each entry whose key is not already present and is not reserved,
+     * in a single pass over the supplied entries.
+     *
+     * @param item the entries to merge
+     */
+    public void filteredPutAll( Map< ? extends String, ? > item )
+    {
+        mergeEntries( item );
+    }
+
+    /**
+     * Puts each entry whose key is not already present and is not reserved.
+     * <p>
+     * When the supplied item is a temporary child of this item (i.e. its parent is this item, as with includes),
+     * its include records are transferred to this item for the keys that were put.
+     *
+     * @param item the entries to merge
+     * @return the keys that were put
+     */
+    private Set< String > mergeEntries( Map< ? extends String, ? > item )
+    {
+        final Set< String > merged = putAbsentEntries( item );
+        if ( item instanceof AbstractModelItem && ( ( AbstractModelItem ) item ).getParent() == this )
+        {
+            ( ( AbstractModelItem ) item ).transferIncludeRecords( this, merged );
+        }
+        return merged;
+    }
+
+    /**
+     * Puts each entry whose key is not already present and is not reserved.
+     *
+     * @param entries the entries to put
+     * @return the keys that were put
+     */
+    protected Set< String > putAbsentEntries( Map< ? extends String, ? > entries )
+    {
+        final Set< String > merged = new LinkedHashSet<>();
+        entries.forEach( ( key, value ) -> {
+            if ( ! isReservedKey( key ) && ! containsKey( key ) )
+            {
+                put( key, value );
+                merged.add( key );
+            }
+        } );
+        return merged;
+    }
+
+    /**
+     * Merges an included item, and records the file and the keys it contributed.
+     */
+    private void mergeInclude( File file, IncludeRecord.Kind kind, Model included )
+    {
+        addIncludeRecord( new IncludeRecord( this, file, kind, mergeEntries( included ) ) );
+    }
+
+    void addIncludeRecord( IncludeRecord record )
+    {
+        if ( includeRecords == null )
+        {
+            synchronized ( this )
+            {
+                if ( includeRecords == null )
+                {
+                    includeRecords = new CopyOnWriteArrayList<>();
+                }
+            }
+        }
+        includeRecords.add( record );
+    }
+
+    /**
+     * Moves the include records of this item to the target item,
+     * keeping only the keys that were merged into the target,
+     * and dropping records left with no keys (except those of properties files, which have none).
+     */
+    private void transferIncludeRecords( AbstractModelItem target, Set< String > merged )
+    {
+        final List< IncludeRecord > records = includeRecords;
+        if ( records == null )
+        {
+            return;
+        }
+        includeRecords = null;
+        for ( IncludeRecord record : records )
+        {
+            final Set< String > keys = new LinkedHashSet<>( record.getKeys() );
+            keys.retainAll( merged );
+            final boolean properties = record.getKind() == IncludeRecord.Kind.PROPERTIES
+                    || record.getKind() == IncludeRecord.Kind.PROPERTIES_XML;
+            if ( properties || ! keys.isEmpty() )
+            {
+                record.setKeys( keys );
+                record.setTarget( target );
+                target.addIncludeRecord( record );
+            }
+        }
+    }
+
+    /**
+     * The include records of this item itself.
+     *
+     * @return the include records of this item
+     */
+    List< IncludeRecord > ownIncludeRecords()
+    {
+        final List< IncludeRecord > own = includeRecords;
+        return own == null
+               ? Collections.emptyList()
+               : new ArrayList<>( own );
+    }
+
+    /**
+     * The include records of this item and of its descendants,
+     * read from the stored entries without loading any deferred includes.
+     *
+     * @param records the list to add records to
+     */
+    void collectIncludeRecords( List< IncludeRecord > records )
+    {
+        final List< IncludeRecord > own = includeRecords;
+        if ( own != null )
+        {
+            records.addAll( own );
+        }
+        children().forEach( child -> child.collectIncludeRecords( records ) );
+    }
+
+    /**
+     * Materializes the file of the include record again,
+     * and replaces the entries it previously contributed to this item with the new ones.
+     * <p>
+     * The new entries are built apart from this item, and then swapped in by <code>replaceEntries</code>,
+     * after which the properties files of this item are applied again.
+     * A changed properties file is simply applied again.
+     *
+     * @param record an include record of this item
+     */
+    void reloadInclude( IncludeRecord record )
+    {
+        final File file = record.getFile();
+        switch ( record.getKind() )
+        {
+            case PROPERTIES:
+                overwritePropertiesFromFile( file, false );
+                return;
+            case PROPERTIES_XML:
+                overwritePropertiesFromFile( file, true );
+                return;
+            default:
+                break;
+        }
+
+        final Model fresh = withFileStack( Collections.emptyList(), () -> {
+            putOnFileStack( file.toPath() );
+            return record.getKind() == IncludeRecord.Kind.JSON
+                   ? newChild( this, file, item -> item.put( CURRENT_DIRECTORY, file.getParentFile().toPath().toString() ) )
+                   : newChildFromXmlFile( file );
+        } );
+
+        final Set< String > previous = record.getKeys();
+        final Map< String, Object > entries = new LinkedHashMap<>();
+        fresh.forEach( ( key, value ) -> {
+            if ( ! isReservedKey( key ) && ( previous.contains( key ) || ! containsKey( key ) ) )
+            {
+                entries.put( key, value );
+            }
+        } );
+
+        replaceEntries( previous, entries );
+        record.setKeys( new LinkedHashSet<>( entries.keySet() ) );
+
+        if ( fresh instanceof AbstractModelItem )
+        {
+            ( ( AbstractModelItem ) fresh ).transferIncludeRecords( this, entries.keySet() );
+        }
+
+        // properties files are applied after includes, so they still take precedence
+        includeRecords
+                .stream()
+                .filter( r -> r.getKind() == IncludeRecord.Kind.PROPERTIES || r.getKind() == IncludeRecord.Kind.PROPERTIES_XML )
+                .forEach( r -> overwritePropertiesFromFile( r.getFile(), r.getKind() == IncludeRecord.Kind.PROPERTIES_XML ) );
+    }
+
+    /**
+     * Starts watching the files included into this item and its descendants,
+     * reloading each one when it changes (see {@link ModelWatcher}).
+     * <p>
+     * This should be called on the root item, after it has been loaded.
+     *
+     * @return the watcher, to be closed when no longer needed
+     */
+    public ModelWatcher watchIncludes()
+    {
+        return new ModelWatcher( this );
+    }
+
+    /**
+     * Removes the old keys that are not replaced, and then puts the new entries.
+     * <p>
+     * Subclasses guarding their entries with a lock should do this under the lock,
+     * so readers see either all or none of the changes.
+     *
+     * @param oldKeys    the keys being replaced
+     * @param newEntries the new entries
+     */
+    protected void replaceEntries( Collection< String > oldKeys, Map< String, Object > newEntries )
+    {
+        oldKeys
+                .stream()
+                .filter( key -> ! newEntries.containsKey( key ) )
+                .forEach( this::remove );
+        newEntries.forEach( this::put );
+    }
+
+    /**
+     * True if the key starts with any of <code>RESERVED_KEY_PREFIXES</code>.
+     *
+     * @param key the key to test
+     * @return true if the key is reserved
+     */
+    private static boolean isReservedKey( String key )
+    {
+        if ( key.isEmpty() || key.charAt( 0 ) != '$' )
+        {
+            return false;
+        }
+        for ( String prefix : RESERVED_KEY_PREFIXES )
+        {
+            if ( key.startsWith( prefix ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Overwrites entries of this item and its descendants with the properties in each file, in order.
+     * <p>
+     * When includes are parallel (see {@link #isParallelIncludes()}),
+     * the files are read concurrently, and then applied in order.
+     */
+    private void overwritePropertiesFromFiles( List< String > filenames, boolean isXml )
+    {
+        final List< File > files = filenames
+                .stream()
+                .map( this::propertiesFile )
+                .collect( Collectors.toList() );
+        files.forEach( file -> {
+            addSourceFile( file );
+            addIncludeRecord( new IncludeRecord(
+                    this,
+                    file,
+                    isXml ? IncludeRecord.Kind.PROPERTIES_XML : IncludeRecord.Kind.PROPERTIES,
+                    Collections.emptySet() ) );
+        } );
+        if ( isParallelIncludes( filenames ) )
+        {
+            forkIncludes( files, file -> readProperties( file, isXml ) ).forEach( trie -> trie.overwrite( this ) );
+        }
+        else
+        {
+            files.forEach( file -> readProperties( file, isXml ).overwrite( this ) );
+        }
+    }
+
+    private File propertiesFile( String propertiesFilePath )
+    {
+        File file = new File( propertiesFilePath );
+        if ( ! file.exists() )
+        {
+            file = new File( getCurrentDirectory().toFile(), propertiesFilePath );
+        }
+        return file;
+    }
+
+    /**
+     * Overwrites entries of this item and its descendants with the properties in the file,
+     * in a single pass over a trie of the property keys (see {@link PropertiesTrie}).
+     */
+    private void overwritePropertiesFromFile( File file, boolean isXml )
+    {
+        readProperties( file, isXml ).overwrite( this );
+    }
+
+    private static PropertiesTrie readProperties( File file, boolean isXml )
+    {
+        final PropertiesTrie trie = new PropertiesTrie();
+        try ( FileInputStream fis = new FileInputStream( file ) )
+        {
+            if ( isXml )
+            {
+                trie.putAll( PROPERTIES_XML_MATERIALIZER.apply( new InputSource( fis ) ) );
+            }
+            else
+            {
+                trie.load( fis );
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new ModelException( format( "Properties file not found: %s", file ), e );
+        }
+        return trie;
+    }
+
+    @Override
+    public String toJson()
+    {
+        try
+        {
+            return getJsonWriter()
+                    .writeValueAsString( this );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new ModelException( format( "ModelItem at path: %s", path() ), e );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return path();
+    }
+
+    @Override
+    public Model getSelf()
+    {
+        return this;
+    }
+
+    @Override
+    public Object steps( String steps, Map< String, Object > argMap )
+    {
+        return new Steps( this, steps ).run( argMap );
+    }
+
+    /**
+     * Records a call of the steps of a key, and runs them on the model (see {@link Steps}).
+     *
+     * @param model the model holding the steps
+     * @param key   the key of the steps
+     * @param args  the arguments of the call
+     * @return the result of the last step
+     */
+    static Object callSteps( Model model, String key, Map< String, Object > args )
+    {
+        final ModelMetrics metrics = model.getMetrics();
+        if ( metrics != null )
+        {
+            final String path = model.path();
+            metrics.recordCall( path.isEmpty() ? key : path + "." + key );
+        }
+        return new Steps( model, ( String ) model.get( key ), key ).run( args );
+    }
+
+    /**
+     * Expands and evaluates a step, recording the time taken and any exception raised.
+     */
+    private static Object timedEval( Model model, ModelMetrics metrics, String key, String step )
+    {
+        final long started = System.nanoTime();
+        try
+        {
+            final Object result = model.eval( model.expand( step ) );
+            metrics.recordStep( key, System.nanoTime() - started );
+            return result;
+        }
+        catch ( RuntimeException e )
+        {
+            if ( e.getCause() instanceof Supplier )
+            {
+                // a return from the steps, not a failure
+                metrics.recordStep( key, System.nanoTime() - started );
+            }
+            else
+            {
+                metrics.recordStepException( key, System.nanoTime() - started, e );
+            }
+            throw e;
+        }
+    }
+
+    private static String indent( int depth )
+    {
+        final StringBuilder indent = new StringBuilder( depth * 2 );
+        for ( int i = 0; i < depth; i++ )
+        {
+            indent.append( "  " );
+        }
+        return indent.toString();
+    }
+
+    /**
+     * Runs steps on a model, in a new scope holding the arguments,
+     * firing an event for the steps and for each step,
+     * and recording the time taken by each step when the model has metrics.
+     */
+    static class Steps
+    {
+        private final Model model;
         private final String steps;
+        private final String key;
+
+        public Steps( Model model, String steps )
+        {
+            this( model, steps, null );
+        }
 
-        public Steps( String steps )
+        public Steps( Model model, String steps, String key )
         {
+            this.model = model;
             this.steps = steps;
+            this.key = key;
         }
 
         public Object run( Map< String, Object > argMap )
@@ -411,34 +2082,29 @@ public abstract class AbstractModelItem extends LinkedHashMap< String, Object >
 
             try
             {
-                String indent = IntStream
-                        .range( 0, scopeStack.get().size() )
-                        .mapToObj( i -> "  " )
-                        .collect( Collectors.joining() );
+                final int depth = scopeStack.get().size();
+                final String modelPath = model.path();
 
-                String modelPath = path();
+                model.fireModelEvent(
+                        ModelEvent.EventType.STEPS_START,
+                        () -> format( "%s%s (inline)", indent( depth ), modelPath.isEmpty() ? "" : ( modelPath + ":" ) ) );
 
-                notifyModelEvent(
-                        ModelEvent
-                                .EventType
-                                .STEPS_START
-                                .newEvent(
-                                        AbstractModelItem.this,
-                                        format( "%s%s (inline)", indent, modelPath.isEmpty() ? "" : ( modelPath + ":" ) ) ) );
+                final ModelMetrics metrics = model.getMetrics();
+                final String stepsKey = key == null ? "(inline)" : key;
+                final String stepPrefix = modelPath.isEmpty() ? stepsKey : ( modelPath + "." + stepsKey );
 
                 Object[] lastResult = { null };
+                int[] index = { 0 };
 
-                Model
-                        .stepsStream( steps )
-                        .peek( step -> notifyModelEvent(
-                                ModelEvent
-                                        .EventType
-                                        .STEP_START
-                                        .newEvent(
-                                                AbstractModelItem.this,
-                                                format( "%s -> %s", indent, step ) ) ) )
-                        .map( AbstractModelItem.this::expand )
-                        .forEach( step -> lastResult[ 0 ] = eval( step ) );
+                StepProgram
+                        .of( steps )
+                        .stream()
+                        .peek( step -> model.fireModelEvent(
+                                ModelEvent.EventType.STEP_START,
+                                () -> format( "%s -> %s", indent( depth ), step ) ) )
+                        .forEach( step -> lastResult[ 0 ] = metrics == null
+                                                            ? model.eval( model.expand( step ) )
+                                                            : timedEval( model, metrics, stepPrefix + "[" + index[ 0 ]++ + "]", step ) );
 
                 return lastResult[ 0 ];
 
@@ -0,0 +1,235 @@
+package com.brentcroft.tools.model;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Memoizes the expanded values of items, tracking the entries each expansion read,
+ * so that a memoized value is discarded as soon as any entry it depends on is changed.
+ * <p>
+ * While a value is expanded, every raw read of an item entry (or test for its presence) on the same thread
+ * is recorded as a dependency.
+ * Dependencies are transitive: an expansion that reads a memoized value also depends on what that value read.
+ * Each item holds its own memoized values, and, for each of its keys, the values depending on that key.
+ * <p>
+ * Values are neither looked up nor memoized while steps are running,
+ * since expansions may then read local scopes, which are not tracked.
+ * <p>
+ * Each tree keeps its own count of changes and of tracking threads (see {@link Tree}),
+ * so reads and writes in one tree cost nothing extra while no thread is expanding in that tree,
+ * and never invalidate expansions in progress in another tree.
+ * Only reads of entries in the tree of the expanding item are tracked,
+ * so templates reading other trees should not be memoized.
+ */
+final class ExpansionMemo
+{
+    private static final ThreadLocal< Deque< Set< Ref > > > TRACKING = ThreadLocal.withInitial( ArrayDeque::new );
+
+    private ExpansionMemo()
+    {
+    }
+
+    /**
+     * The memoizing state of one tree, held by its root, and cached by each item of the tree.
+     */
+    static final class Tree
+    {
+        private final AbstractModelItem root;
+
+        /**
+         * The number of threads currently tracking dependencies in this tree, so reads cost nothing when there are none.
+         */
+        private final AtomicInteger trackingThreads = new AtomicInteger();
+
+        /**
+         * Incremented on every change to an entry of this tree,
+         * so a value expanded while a change was made is not memoized.
+         */
+        private final AtomicLong changes = new AtomicLong();
+
+        Tree( AbstractModelItem root )
+        {
+            this.root = root;
+        }
+
+        /**
+         * The root of this tree, or null if the root is not an AbstractModelItem.
+         *
+         * @return the root item
+         */
+        AbstractModelItem getRoot()
+        {
+            return root;
+        }
+    }
+
+    /**
+     * An entry of an item, comparing items by identity.
+     */
+    static final class Ref
+    {
+        private final AbstractModelItem item;
+        private final Object key;
+
+        Ref( AbstractModelItem item, Object key )
+        {
+            this.item = item;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            return o instanceof Ref
+                    && ( ( Ref ) o ).item == item
+                    && ( ( Ref ) o ).key.equals( key );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode( item ) * 31 + key.hashCode();
+        }
+    }
+
+    /**
+     * An expanded value, the raw value it was expanded from, and the entries it depends on.
+     * <p>
+     * A memo is only served once confirmed, i.e. once no change was made while it was expanded and stored.
+     */
+    static final class Memo
+    {
+        private final String raw;
+        private final String value;
+        private final Set< Ref > dependencies;
+        private volatile boolean confirmed;
+
+        Memo( String raw, String value, Set< Ref > dependencies )
+        {
+            this.raw = raw;
+            this.value = value;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * Records a raw read of an item entry, if the current thread is tracking dependencies.
+     *
+     * @param item the item read
+     * @param key  the key read
+     */
+    static void recordRead( AbstractModelItem item, Object key )
+    {
+        if ( key == null || item.getMemoTree().trackingThreads.get() == 0 )
+        {
+            return;
+        }
+        final Set< Ref > dependencies = TRACKING.get().peek();
+        if ( dependencies != null )
+        {
+            dependencies.add( new Ref( item, key ) );
+        }
+    }
+
+    /**
+     * The memoized expansion of an entry, or else the result of the expander, which is then memoized.
+     *
+     * @param item     the item
+     * @param key      the key of the entry
+     * @param raw      the raw value of the entry
+     * @param expander expands the raw value
+     * @return the expanded value
+     */
+    static String expand( AbstractModelItem item, String key, String raw, Supplier< String > expander )
+    {
+        if ( AbstractModelItem.scopeStack != null && ! AbstractModelItem.scopeStack.get().isEmpty() )
+        {
+            return expander.get();
+        }
+
+        final Deque< Set< Ref > > tracking = TRACKING.get();
+        final Memo memoized = item.getMemos().get( key );
+        if ( memoized != null && memoized.confirmed && memoized.raw == raw )
+        {
+            if ( ! tracking.isEmpty() )
+            {
+                tracking.peek().addAll( memoized.dependencies );
+            }
+            return memoized.value;
+        }
+
+        final Tree tree = item.getMemoTree();
+        final long changes = tree.changes.get();
+        final Set< Ref > dependencies = new HashSet<>();
+        final String value;
+        tracking.push( dependencies );
+        tree.trackingThreads.incrementAndGet();
+        try
+        {
+            value = expander.get();
+        }
+        finally
+        {
+            tree.trackingThreads.decrementAndGet();
+            tracking.pop();
+        }
+        if ( ! tracking.isEmpty() )
+        {
+            tracking.peek().addAll( dependencies );
+        }
+
+        if ( tree.changes.get() == changes )
+        {
+            // register the dependents before storing, and check again after,
+            // so a change made meanwhile either finds and discards the memo, or is seen here
+            final Ref memoRef = new Ref( item, key );
+            for ( Ref dependency : dependencies )
+            {
+                dependency.item.getDependents( dependency.key ).add( memoRef );
+            }
+            final Memo memo = new Memo( raw, value, dependencies );
+            item.getMemos().put( key, memo );
+            if ( tree.changes.get() == changes )
+            {
+                memo.confirmed = true;
+            }
+            else
+            {
+                item.getMemos().remove( key, memo );
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Discards the memoized value of the entry and every memoized value that depends on it.
+     *
+     * @param item the changed item
+     * @param key  the changed key
+     */
+    static void changed( AbstractModelItem item, Object key )
+    {
+        item.getMemoTree().changes.incrementAndGet();
+        item.getMemos().remove( key );
+        final Set< Ref > dependents = item.getDependents().remove( key );
+        if ( dependents != null )
+        {
+            dependents.forEach( ref -> ref.item.getMemos().remove( ref.key ) );
+        }
+    }
+
+    /**
+     * Discards every memoized value of the item, and every memoized value that depends on any of its entries.
+     *
+     * @param item the cleared item
+     */
+    static void cleared( AbstractModelItem item )
+    {
+        item.getMemoTree().changes.incrementAndGet();
+        item.getMemos().clear();
+        final Map< Object, Set< Ref > > dependents = item.getDependents();
+        new ArrayList<>( dependents.keySet() ).forEach( key -> changed( item, key ) );
+    }
+}
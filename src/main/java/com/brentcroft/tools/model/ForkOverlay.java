@@ -0,0 +1,252 @@
+package com.brentcroft.tools.model;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The copy-on-write state of a fork (see <code>AbstractModelItem.newFork()</code>):
+ * the base it reads through to, the keys removed from it that are still present in the base,
+ * and the forks of child Models of the base that have been read but not yet written.
+ * <p>
+ * The fork holds the entries written to it in its own map, and this reads them through the fork,
+ * so every call is made under whatever lock the fork holds for the operation.
+ * The removed keys and child forks are concurrent collections held in final fields,
+ * so they are safely published along with the fork.
+ */
+final class ForkOverlay
+{
+    private final AbstractModelItem fork;
+    private final Map< String, Object > base;
+    private final Set< Object > removedKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Forks of child Models of the base that have been read but not yet written,
+     * held weakly so that reading a fork never stores anything in it (see {@link #forkValue(Object)}).
+     */
+    private final Map< String, WeakReference< Model > > childForks = new ConcurrentHashMap<>();
+
+    /**
+     * The fork as a plain Map, whose compound operations (e.g. <code>computeIfAbsent</code>) are the Map defaults,
+     * and so go through the get, containsKey, put and remove of the fork, and see the base entries.
+     */
+    private final Map< String, Object > asMap;
+
+    ForkOverlay( AbstractModelItem fork, Map< String, Object > base )
+    {
+        this.fork = fork;
+        this.base = base;
+        this.asMap = new AbstractMap< String, Object >()
+        {
+            @Override
+            public Set< Entry< String, Object > > entrySet()
+            {
+                return fork.entrySet();
+            }
+
+            @Override
+            public Object get( Object key )
+            {
+                return fork.getRaw( key );
+            }
+
+            @Override
+            public boolean containsKey( Object key )
+            {
+                return fork.containsKey( key );
+            }
+
+            @Override
+            public Object put( String key, Object value )
+            {
+                return fork.put( key, value );
+            }
+
+            @Override
+            public Object remove( Object key )
+            {
+                return fork.remove( key );
+            }
+        };
+    }
+
+    Map< String, Object > asMap()
+    {
+        return asMap;
+    }
+
+    /**
+     * The stored value of a key in the base.
+     */
+    private Object baseValue( Object key )
+    {
+        return base instanceof AbstractModelItem
+               ? ( ( AbstractModelItem ) base ).getRaw( key )
+               : base instanceof FrozenModel
+                 ? ( ( FrozenModel ) base ).getRaw( key )
+                 : base.get( key );
+    }
+
+    /**
+     * The stored value of a key in the base, replacing a child Model with a fork of it.
+     * <p>
+     * The same child fork is returned while it is still referenced,
+     * but it is only stored in the fork once it is written (see {@link #attachChildFork(String, Model)}).
+     */
+    private Object forkValue( Object key )
+    {
+        final Object value = baseValue( key );
+        if ( ! ( value instanceof Model ) )
+        {
+            return value;
+        }
+        final Model[] child = new Model[ 1 ];
+        childForks.compute( key.toString(), ( k, ref ) -> {
+            child[ 0 ] = ref == null ? null : ref.get();
+            if ( child[ 0 ] != null )
+            {
+                return ref;
+            }
+            child[ 0 ] = AbstractModelItem.newFork( ( Model ) value );
+            child[ 0 ].setName( k );
+            child[ 0 ].setParent( fork );
+            return new WeakReference<>( child[ 0 ] );
+        } );
+        return child[ 0 ];
+    }
+
+    /**
+     * Stores a child fork in the fork once it has been written,
+     * unless the key has since been set or removed in the fork.
+     *
+     * @param key   the key of the child
+     * @param child the child fork
+     * @return false if the child fork is no longer read from the key
+     */
+    boolean attachChildFork( String key, Model child )
+    {
+        final WeakReference< Model > ref = childForks.get( key );
+        if ( ref == null || ref.get() != child )
+        {
+            return false;
+        }
+        if ( ! fork.containsOwnKey( key ) && ! removedKeys.contains( key ) )
+        {
+            fork.putOwn( key, child );
+        }
+        childForks.remove( key, ref );
+        return true;
+    }
+
+    /**
+     * The child forks read from the fork that have not yet been stored in it.
+     */
+    Stream< Object > childForks()
+    {
+        return childForks
+                .values()
+                .stream()
+                .map( WeakReference::get );
+    }
+
+    Object get( Object key )
+    {
+        if ( fork.containsOwnKey( key ) )
+        {
+            return fork.getOwn( key );
+        }
+        return removedKeys.contains( key )
+               ? null
+               : forkValue( key );
+    }
+
+    boolean containsKey( Object key )
+    {
+        return fork.containsOwnKey( key )
+                || ! removedKeys.contains( key ) && base.containsKey( key );
+    }
+
+    boolean containsValue( Object value )
+    {
+        for ( Iterator< Map.Entry< String, Object > > entries = entries(); entries.hasNext(); )
+        {
+            if ( Objects.equals( entries.next().getValue(), value ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Object set( String key, Object value )
+    {
+        final Object previous = fork.containsOwnKey( key ) || removedKeys.contains( key )
+                                ? fork.getOwn( key )
+                                : baseValue( key );
+        fork.putOwn( key, value );
+        removedKeys.remove( key );
+        childForks.remove( key );
+        return previous;
+    }
+
+    Object remove( Object key )
+    {
+        final Object previous = fork.containsOwnKey( key ) || removedKeys.contains( key )
+                                ? fork.removeOwn( key )
+                                : baseValue( key );
+        if ( base.containsKey( key ) )
+        {
+            removedKeys.add( key );
+        }
+        childForks.remove( key );
+        return previous;
+    }
+
+    /**
+     * The number of entries of the fork, counted without reading any base values.
+     */
+    int size()
+    {
+        int size = fork.ownSize();
+        for ( String key : base.keySet() )
+        {
+            if ( ! fork.containsOwnKey( key ) && ! removedKeys.contains( key ) )
+            {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The entries of the fork, read lazily from the base entries that are not removed
+     * (taking any replaced value from the fork), and then from the new entries of the fork.
+     * <p>
+     * Only the keys of the new entries are copied when iteration starts,
+     * so the fork can be changed while it is iterated.
+     */
+    Iterator< Map.Entry< String, Object > > entries()
+    {
+        return keys()
+                .map( key -> ( Map.Entry< String, Object > ) new AbstractMap.SimpleImmutableEntry<>( key, get( key ) ) )
+                .iterator();
+    }
+
+    /**
+     * The keys of the fork, in the order of its entries (see {@link #entries()}).
+     */
+    Stream< String > keys()
+    {
+        final List< String > newKeys = fork
+                .ownKeySet()
+                .stream()
+                .filter( key -> ! base.containsKey( key ) )
+                .collect( Collectors.toList() );
+        return Stream
+                .concat(
+                        base.keySet().stream().filter( key -> fork.containsOwnKey( key ) || ! removedKeys.contains( key ) ),
+                        newKeys.stream().filter( fork::containsOwnKey ) );
+    }
+}
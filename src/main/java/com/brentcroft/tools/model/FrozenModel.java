@@ -0,0 +1,446 @@
+package com.brentcroft.tools.model;
+
+import com.brentcroft.tools.el.MapBindings;
+import com.brentcroft.tools.el.Parented;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import static java.lang.String.format;
+
+/**
+ * An immutable snapshot of a Model tree (see <code>Model.freeze()</code>).
+ * <p>
+ * Keys and values are held in arrays, in insertion order,
+ * and looked up through an open-addressing hash table of array indexes.
+ * String values without expansion markers are flagged as constant when frozen,
+ * and are then returned without any expansion.
+ * <p>
+ * Child Models are frozen recursively, and Lists and Maps are copied into unmodifiable collections,
+ * so a frozen tree can be read from any number of threads without locking.
+ * A Model appearing more than once in the source tree is frozen at each place it appears,
+ * so each snapshot has the path and root of its own place,
+ * while a value that refers back to one of its own ancestors refers to the snapshot of that ancestor.
+ * <p>
+ * The root of a frozen tree has no parent, so the tree is detached from any mutable ancestors.
+ * Every mutating operation throws an UnsupportedOperationException.
+ * <p>
+ * Each snapshot keeps the bindings the source adds to its containers,
+ * and the metrics and event dispatcher of the source,
+ * and runs steps like any other item (see <code>AbstractModelItem.Steps</code>).
+ */
+public final class FrozenModel extends AbstractMap< String, Object > implements Model, Parented
+{
+    @Getter
+    private final String name;
+    @Getter
+    private final FrozenModel parent;
+    @Getter
+    private final Path currentDirectory;
+    @Getter
+    private final Class< ? extends Model > modelClass;
+    @Getter
+    private final Expander expander;
+    @Getter
+    private final Evaluator evaluator;
+    private final ELCompiler elCompiler;
+    @Getter
+    private final ModelMetrics metrics;
+    @Getter
+    private final ModelEventDispatcher eventDispatcher;
+
+    /**
+     * The bindings the source adds to each new container (e.g. <code>$self</code> and <code>$parent</code>),
+     * with the source and its parent replaced by their snapshots.
+     */
+    private final Map< String, Object > containerBindings;
+
+    private final String[] keys;
+    private final Object[] values;
+    private final boolean[] constant;
+    private final int[] table;
+
+    /**
+     * Freezes the supplied Model, or returns it if it is already frozen.
+     *
+     * @param source the Model to freeze
+     * @return an immutable snapshot of the Model
+     */
+    public static FrozenModel freeze( Model source )
+    {
+        return source instanceof FrozenModel
+               ? ( FrozenModel ) source
+               : new FrozenModel( source, null, new IdentityHashMap<>() );
+    }
+
+    /**
+     * Freezes the source, in the place of a child of the parent.
+     *
+     * @param source   the Model to freeze
+     * @param parent   the snapshot of the parent, or null
+     * @param freezing the snapshots of the values being frozen, i.e. of the source and of its ancestors
+     */
+    private FrozenModel( Model source, FrozenModel parent, Map< Object, Object > freezing )
+    {
+        freezing.put( source, this );
+
+        this.name = source.getName();
+        this.parent = parent;
+        this.currentDirectory = source.getCurrentDirectory();
+        this.modelClass = source.getModelClass();
+        this.expander = source.getExpander();
+        this.evaluator = source.getEvaluator();
+        this.elCompiler = source.getELCompiler();
+        this.metrics = source.getMetrics();
+        this.eventDispatcher = source.getEventDispatcher();
+
+        final Map< String, Object > sourceParent = source.getParent();
+        final Map< String, Object > bindings = new LinkedHashMap<>();
+        source.newContainer().forEach( ( key, value ) -> {
+            if ( ! source.containsKey( key ) )
+            {
+                bindings.put( key, value == source
+                                   ? this
+                                   : value != null && value == sourceParent
+                                     ? parent
+                                     : value );
+            }
+        } );
+        this.containerBindings = bindings;
+
+        final List< Map.Entry< String, Object > > entries = new ArrayList<>( source.entrySet() );
+        final int n = entries.size();
+
+        this.keys = new String[ n ];
+        this.values = new Object[ n ];
+        this.constant = new boolean[ n ];
+        this.table = new int[ tableSize( n ) ];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            final Map.Entry< String, Object > entry = entries.get( i );
+            final Object value = freezeValue( entry.getValue(), freezing );
+            keys[ i ] = entry.getKey();
+            values[ i ] = value;
+            constant[ i ] = ! ( value instanceof String ) || ! Model.isExpandable( ( String ) value );
+            table[ slot( entry.getKey() ) ] = i + 1;
+        }
+
+        freezing.remove( source );
+    }
+
+    private Object freezeValue( Object value, Map< Object, Object > freezing )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+        final Object ancestor = freezing.get( value );
+        if ( ancestor != null )
+        {
+            return ancestor;
+        }
+        if ( value instanceof Model )
+        {
+            return new FrozenModel( ( Model ) value, this, freezing );
+        }
+        else if ( value instanceof Map )
+        {
+            final Map< Object, Object > copy = new LinkedHashMap<>();
+            final Map< Object, Object > snapshot = Collections.unmodifiableMap( copy );
+            freezing.put( value, snapshot );
+            ( ( Map< ?, ? > ) value ).forEach( ( k, v ) -> copy.put( k, freezeValue( v, freezing ) ) );
+            freezing.remove( value );
+            return snapshot;
+        }
+        else if ( value instanceof List )
+        {
+            final List< Object > copy = new ArrayList<>();
+            final List< Object > snapshot = Collections.unmodifiableList( copy );
+            freezing.put( value, snapshot );
+            ( ( List< ? > ) value ).forEach( v -> copy.add( freezeValue( v, freezing ) ) );
+            freezing.remove( value );
+            return snapshot;
+        }
+        return value;
+    }
+
+    /**
+     * A power of two at least twice the number of entries, so probe sequences stay short.
+     */
+    private static int tableSize( int entries )
+    {
+        int size = 2;
+        while ( size < entries * 2 )
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int hash( Object key )
+    {
+        final int h = key.hashCode();
+        return h ^ ( h >>> 16 );
+    }
+
+    /**
+     * The table slot that holds, or would hold, the supplied key.
+     */
+    private int slot( Object key )
+    {
+        final int mask = table.length - 1;
+        int slot = hash( key ) & mask;
+        while ( table[ slot ] != 0 && ! keys[ table[ slot ] - 1 ].equals( key ) )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+        return slot;
+    }
+
+    private int indexOf( Object key )
+    {
+        return key == null
+               ? - 1
+               : table[ slot( key ) ] - 1;
+    }
+
+    @Override
+    public Object get( Object key )
+    {
+        final int index = indexOf( key );
+        if ( index < 0 )
+        {
+            return null;
+        }
+        return constant[ index ]
+               ? values[ index ]
+               : expand( ( String ) values[ index ] );
+    }
+
+    /**
+     * The stored value for a key, without any expansion.
+     *
+     * @param key the key
+     * @return the stored value or null
+     */
+    Object getRaw( Object key )
+    {
+        final int index = indexOf( key );
+        return index < 0
+               ? null
+               : values[ index ];
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return indexOf( key ) >= 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return keys.length;
+    }
+
+    @Override
+    public void forEach( BiConsumer< ? super String, ? super Object > action )
+    {
+        for ( int i = 0; i < keys.length; i++ )
+        {
+            action.accept( keys[ i ], values[ i ] );
+        }
+    }
+
+    /**
+     * The entries in insertion order, holding the stored (unexpanded) values.
+     */
+    @Override
+    public Set< Entry< String, Object > > entrySet()
+    {
+        return new AbstractSet< Entry< String, Object > >()
+        {
+            @Override
+            public Iterator< Entry< String, Object > > iterator()
+            {
+                return new Iterator< Entry< String, Object > >()
+                {
+                    private int index = 0;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return index < keys.length;
+                    }
+
+                    @Override
+                    public Entry< String, Object > next()
+                    {
+                        if ( ! hasNext() )
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        final int i = index++;
+                        return new SimpleImmutableEntry<>( keys[ i ], values[ i ] );
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return keys.length;
+            }
+        };
+    }
+
+    @Override
+    public ELCompiler getELCompiler()
+    {
+        return elCompiler;
+    }
+
+    @Override
+    public Map< String, Object > newContainer()
+    {
+        MapBindings bindings = new MapBindings( this );
+        bindings.putAll( containerBindings );
+        return bindings;
+    }
+
+    /**
+     * Runs each step against this frozen item, in a new scope holding the arguments.
+     * <p>
+     * Steps that assign to this item fail, since it cannot be changed.
+     */
+    @Override
+    public Object steps( String steps, Map< String, Object > args )
+    {
+        return new AbstractModelItem.Steps( this, steps ).run( args );
+    }
+
+    @Override
+    public Model freeze()
+    {
+        return this;
+    }
+
+    @Override
+    public Model getSelf()
+    {
+        return this;
+    }
+
+    @Override
+    public Model getRoot()
+    {
+        return parent == null
+               ? this
+               : parent.getRoot();
+    }
+
+    @Override
+    public String path()
+    {
+        if ( parent == null )
+        {
+            return "";
+        }
+        final String parentPath = parent.path();
+        return parentPath.isEmpty()
+               ? name
+               : parentPath + "." + name;
+    }
+
+    @Override
+    public String toJson()
+    {
+        try
+        {
+            return AbstractModelItem
+                    .getJsonWriter()
+                    .writeValueAsString( this );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new ModelException( format( "FrozenModel at path: %s", path() ), e );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return path();
+    }
+
+    /**
+     * Nothing to do: the source entries were introspected before being frozen.
+     */
+    @Override
+    public void introspectEntries()
+    {
+    }
+
+    private UnsupportedOperationException frozen()
+    {
+        return new UnsupportedOperationException( format( "FrozenModel at path: '%s' cannot be changed", path() ) );
+    }
+
+    @Override
+    public Object put( String key, Object value )
+    {
+        throw frozen();
+    }
+
+    @Override
+    public Object set( String key, Object value )
+    {
+        throw frozen();
+    }
+
+    @Override
+    public Object remove( Object key )
+    {
+        throw frozen();
+    }
+
+    @Override
+    public void putAll( Map< ? extends String, ? > m )
+    {
+        throw frozen();
+    }
+
+    @Override
+    public void filteredPutAll( Map< ? extends String, ? > item )
+    {
+        throw frozen();
+    }
+
+    @Override
+    public void clear()
+    {
+        throw frozen();
+    }
+
+    @Override
+    public void setName( String name )
+    {
+        throw frozen();
+    }
+
+    @Override
+    public void setParent( Map< String, Object > parent )
+    {
+        throw frozen();
+    }
+
+    @Override
+    public void setCurrentDirectory( Path directoryPath )
+    {
+        throw frozen();
+    }
+}
@@ -0,0 +1,244 @@
+package com.brentcroft.tools.model;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * A size-bounded cache of materialized include files, keyed by canonical path.
+ * <p>
+ * Each entry records the last modified time and size of every file the load touched,
+ * i.e. the included file and any files it included in turn,
+ * and is only used while none of them has changed.
+ * <p>
+ * The cache keeps a detached copy of each item it loads
+ * and hands out a deep copy of it on every later request,
+ * so includers never share Model instances.
+ * On a hit, the nested files are added to the source files of the includer,
+ * and the copy carries the include records of the nested includes, as if the file had been loaded.
+ * <p>
+ * Since a cached file is only materialized once,
+ * any <code>$onload</code> it contains is only evaluated on the first load.
+ */
+public class IncludeCache
+{
+    public static final IncludeCache SHARED = new IncludeCache( 256 );
+
+    /**
+     * The files touched by each load under way on the current thread, innermost last.
+     */
+    private static final ThreadLocal< Deque< Set< File > > > LOADS = ThreadLocal.withInitial( ArrayDeque::new );
+
+    private final Map< String, Entry > items;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public IncludeCache( int maxSize )
+    {
+        this.items = Collections.synchronizedMap( new LruCache<>( maxSize ) );
+    }
+
+    /**
+     * Obtain the item materialized from a file.
+     *
+     * @param file   the file to include
+     * @param parent the parent for the returned item
+     * @param loader materializes the file as a child of <code>parent</code> on a cache miss
+     * @return an item owned by the caller
+     */
+    public Model get( File file, Map< String, Object > parent, Function< File, Model > loader )
+    {
+        final FileState state = FileState.of( file );
+        final Entry cached = items.get( state.canonicalPath );
+        if ( cached != null && cached.isCurrent( state ) )
+        {
+            hits.incrementAndGet();
+            cached.nested.forEach( nested -> {
+                if ( parent instanceof AbstractModelItem )
+                {
+                    ( ( AbstractModelItem ) parent ).addSourceFile( nested.file );
+                }
+                else
+                {
+                    touched( nested.file );
+                }
+            } );
+            return copyOf( cached.item, parent );
+        }
+        misses.incrementAndGet();
+        final Set< File > touched = Collections.synchronizedSet( new LinkedHashSet<>() );
+        final Model item = withLoads( Collections.singletonList( touched ), () -> loader.apply( file ) );
+        final List< FileState > nested = new ArrayList<>();
+        synchronized ( touched )
+        {
+            touched.forEach( f -> nested.add( FileState.of( f ) ) );
+        }
+        nested.removeIf( f -> f.canonicalPath.equals( state.canonicalPath ) );
+        items.put( state.canonicalPath, new Entry( copyOf( item, null ), state, nested ) );
+        return item;
+    }
+
+    /**
+     * Records a file as touched by every load under way on the current thread.
+     *
+     * @param file a file that was included
+     */
+    static void touched( File file )
+    {
+        LOADS.get().forEach( files -> files.add( file ) );
+    }
+
+    /**
+     * The loads under way on the current thread, to be carried by tasks it forks (see {@link #withLoads(List, Supplier)}).
+     *
+     * @return a copy of the loads under way
+     */
+    static List< Set< File > > currentLoads()
+    {
+        return new ArrayList<>( LOADS.get() );
+    }
+
+    /**
+     * Runs the action with the supplied loads also under way on the current thread,
+     * so any files it includes are recorded as touched by them.
+     *
+     * @param loads  the loads
+     * @param action the action
+     * @param <T>    the type of result
+     * @return the result of the action
+     */
+    static < T > T withLoads( List< Set< File > > loads, Supplier< T > action )
+    {
+        final Deque< Set< File > > current = LOADS.get();
+        loads.forEach( current::addLast );
+        try
+        {
+            return action.get();
+        }
+        finally
+        {
+            loads.forEach( loaded -> current.removeLastOccurrence( loaded ) );
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public int size()
+    {
+        return items.size();
+    }
+
+    public void clear()
+    {
+        items.clear();
+    }
+
+    /**
+     * Deep copy a Model, using raw (unexpanded) entry values,
+     * and creating each copied item with <code>newItem()</code> of its new parent, if it has one.
+     * <p>
+     * Nested Models, Maps and Lists are copied, other values are shared.
+     * <p>
+     * Items are copied as stored, without loading any deferred includes,
+     * which the copies load in turn when they are first accessed.
+     * Their include records are copied too.
+     *
+     * @param source the Model to copy
+     * @param parent the parent of the copy
+     * @return the copy
+     */
+    public static Model copyOf( Model source, Map< String, Object > parent )
+    {
+        final Model copy = parent instanceof Model
+                           ? ( ( Model ) parent ).newItem()
+                           : source.newItem();
+        copy.setName( source.getName() );
+        copy.setParent( parent );
+        final Map< String, Object > entries = source instanceof AbstractModelItem
+                                              ? ( ( AbstractModelItem ) source ).storedEntries()
+                                              : source;
+        entries.forEach( ( key, value ) -> copy.set( key, copyOfValue( value, copy ) ) );
+        if ( source instanceof AbstractModelItem && copy instanceof AbstractModelItem )
+        {
+            ( ( AbstractModelItem ) copy ).copyIncludesOf( ( AbstractModelItem ) source );
+        }
+        return copy;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Object copyOfValue( Object value, Model parent )
+    {
+        if ( value instanceof Model )
+        {
+            return copyOf( ( Model ) value, parent );
+        }
+        else if ( value instanceof Map )
+        {
+            final Map< Object, Object > copy = new LinkedHashMap<>();
+            ( ( Map< Object, Object > ) value ).forEach( ( k, v ) -> copy.put( k, copyOfValue( v, parent ) ) );
+            return copy;
+        }
+        else if ( value instanceof List )
+        {
+            final List< Object > copy = new ArrayList<>();
+            ( ( List< Object > ) value ).forEach( v -> copy.add( copyOfValue( v, parent ) ) );
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * A cached item, and the state of the files it was loaded from.
+     */
+    @AllArgsConstructor
+    private static class Entry
+    {
+        private final Model item;
+        private final FileState state;
+        private final List< FileState > nested;
+
+        boolean isCurrent( FileState current )
+        {
+            return state.equals( current )
+                    && nested.stream().allMatch( f -> f.equals( FileState.of( f.file ) ) );
+        }
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode( exclude = "file" )
+    private static class FileState
+    {
+        private final File file;
+        private final String canonicalPath;
+        private final long lastModified;
+        private final long length;
+
+        static FileState of( File file )
+        {
+            try
+            {
+                return new FileState( file, file.getCanonicalPath(), file.lastModified(), file.length() );
+            }
+            catch ( IOException e )
+            {
+                throw new ModelException( format( "Invalid file: %s", file ), e );
+            }
+        }
+    }
+}
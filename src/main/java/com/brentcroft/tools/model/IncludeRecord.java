@@ -0,0 +1,43 @@
+package com.brentcroft.tools.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * A file included into an item, and the keys it contributed to the item.
+ * <p>
+ * Records move with the entries they describe:
+ * when an item is merged into another, its records are transferred to the other item,
+ * keeping only the keys that were merged.
+ */
+@Getter
+class IncludeRecord
+{
+    enum Kind
+    {
+        JSON,
+        XML,
+        PROPERTIES,
+        PROPERTIES_XML
+    }
+
+    private final File file;
+    private final Kind kind;
+
+    @Setter
+    private volatile AbstractModelItem target;
+
+    @Setter
+    private volatile Set< String > keys;
+
+    IncludeRecord( AbstractModelItem target, File file, Kind kind, Set< String > keys )
+    {
+        this.target = target;
+        this.file = file.toPath().toAbsolutePath().normalize().toFile();
+        this.kind = kind;
+        this.keys = keys;
+    }
+}
@@ -0,0 +1,172 @@
+package com.brentcroft.tools.model;
+
+import com.brentcroft.tools.el.MapBindings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Navigates plain object paths without the EL evaluator (see <code>Model.getItem( path )</code>).
+ * <p>
+ * A plain path is a dotted sequence of identifiers, each optionally followed by bracketed list indexes or quoted keys,
+ * e.g. <code>people.green</code>, <code>hues[1]</code> or <code>people['green'].hue</code>.
+ * <p>
+ * Anything else, and any path that does not lead straight to a Model through existing entries,
+ * is left to the evaluator, so the result is always the same as evaluating the path.
+ */
+final class ItemPath
+{
+    private ItemPath()
+    {
+    }
+
+    /**
+     * The Model at the end of a plain path, or null if the path must be evaluated.
+     *
+     * @param start the item to navigate from
+     * @param path  the path
+     * @return the Model found or null
+     */
+    static Model navigate( Model start, String path )
+    {
+        final List< Object > segments = parse( path );
+        if ( segments == null || shadowedByScope( segments.get( 0 ) ) )
+        {
+            return null;
+        }
+        Object node = start;
+        for ( Object segment : segments )
+        {
+            if ( segment instanceof Integer )
+            {
+                final int index = ( Integer ) segment;
+                if ( ! ( node instanceof List ) || index >= ( ( List< ? > ) node ).size() )
+                {
+                    return null;
+                }
+                node = ( ( List< ? > ) node ).get( index );
+            }
+            else
+            {
+                if ( ! ( node instanceof Map ) || ! ( ( Map< ?, ? > ) node ).containsKey( segment ) )
+                {
+                    return null;
+                }
+                node = ( ( Map< ?, ? > ) node ).get( segment );
+            }
+        }
+        return node instanceof Model
+               ? ( Model ) node
+               : null;
+    }
+
+    /**
+     * True if a local scope of the current thread has the key,
+     * which the evaluator might then resolve instead of the entry of the item.
+     */
+    private static boolean shadowedByScope( Object key )
+    {
+        if ( AbstractModelItem.scopeStack == null )
+        {
+            return false;
+        }
+        for ( MapBindings scope : AbstractModelItem.scopeStack.get() )
+        {
+            if ( scope.containsKey( key ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The keys (Strings) and list indexes (Integers) of a plain path, or null if the path is not plain.
+     */
+    static List< Object > parse( String path )
+    {
+        final int length = path == null ? 0 : path.length();
+        if ( length == 0 )
+        {
+            return null;
+        }
+        final List< Object > segments = new ArrayList<>();
+        int i = 0;
+        while ( true )
+        {
+            final int start = i;
+            if ( ! Character.isJavaIdentifierStart( path.charAt( i ) ) )
+            {
+                return null;
+            }
+            i++;
+            while ( i < length && Character.isJavaIdentifierPart( path.charAt( i ) ) )
+            {
+                i++;
+            }
+            segments.add( path.substring( start, i ) );
+
+            while ( i < length && path.charAt( i ) == '[' )
+            {
+                final int close = path.indexOf( ']', i );
+                if ( close < 0 )
+                {
+                    return null;
+                }
+                final Object segment = bracketed( path.substring( i + 1, close ) );
+                if ( segment == null )
+                {
+                    return null;
+                }
+                segments.add( segment );
+                i = close + 1;
+            }
+
+            if ( i == length )
+            {
+                return segments;
+            }
+            if ( path.charAt( i ) != '.' || ++i == length )
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A list index or a quoted key, or null if the text is neither.
+     */
+    private static Object bracketed( String text )
+    {
+        final int length = text.length();
+        if ( length == 0 )
+        {
+            return null;
+        }
+        final char quote = text.charAt( 0 );
+        if ( quote == '\'' || quote == '"' )
+        {
+            if ( length < 2 || text.charAt( length - 1 ) != quote || text.indexOf( quote, 1 ) != length - 1 || text.indexOf( '\\' ) >= 0 )
+            {
+                return null;
+            }
+            return text.substring( 1, length - 1 );
+        }
+        if ( length > 9 )
+        {
+            return null;
+        }
+        int index = 0;
+        for ( int i = 0; i < length; i++ )
+        {
+            final char c = text.charAt( i );
+            if ( c < '0' || c > '9' )
+            {
+                return null;
+            }
+            index = index * 10 + ( c - '0' );
+        }
+        return index;
+    }
+}
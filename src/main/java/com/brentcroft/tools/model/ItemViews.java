@@ -0,0 +1,197 @@
+package com.brentcroft.tools.model;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Views of the entries, keys and values of an item whose entries are not simply those of its own map
+ * (i.e. a fork, see <code>AbstractModelItem.newFork()</code>, or an {@link AbstractConcurrentModelItem}),
+ * that iterate over the entries supplied by the item,
+ * and pass queries, removals and updates through to the item,
+ * so they behave like the views of any other item.
+ * <p>
+ * Entries written by <code>setValue()</code> are put into the item,
+ * and entries removed by an iterator are removed from the item.
+ */
+final class ItemViews
+{
+    private ItemViews()
+    {
+    }
+
+    static Set< Map.Entry< String, Object > > entrySet( AbstractModelItem item, Supplier< Iterator< Map.Entry< String, Object > > > entries )
+    {
+        return new AbstractSet< Map.Entry< String, Object > >()
+        {
+            @Override
+            public Iterator< Map.Entry< String, Object > > iterator()
+            {
+                return new ViewIterator<>( item, entries.get(), entry -> new WriteThroughEntry( item, entry ) );
+            }
+
+            @Override
+            public int size()
+            {
+                return item.size();
+            }
+
+            @Override
+            public boolean contains( Object o )
+            {
+                if ( ! ( o instanceof Map.Entry ) )
+                {
+                    return false;
+                }
+                final Map.Entry< ?, ? > entry = ( Map.Entry< ?, ? > ) o;
+                return item.containsKey( entry.getKey() ) && Objects.equals( item.getRaw( entry.getKey() ), entry.getValue() );
+            }
+
+            @Override
+            public boolean remove( Object o )
+            {
+                return o instanceof Map.Entry
+                        && item.remove( ( ( Map.Entry< ?, ? > ) o ).getKey(), ( ( Map.Entry< ?, ? > ) o ).getValue() );
+            }
+
+            @Override
+            public void clear()
+            {
+                item.clear();
+            }
+        };
+    }
+
+    static Set< String > keySet( AbstractModelItem item, Supplier< Iterator< Map.Entry< String, Object > > > entries )
+    {
+        return new AbstractSet< String >()
+        {
+            @Override
+            public Iterator< String > iterator()
+            {
+                return new ViewIterator<>( item, entries.get(), Map.Entry::getKey );
+            }
+
+            @Override
+            public int size()
+            {
+                return item.size();
+            }
+
+            @Override
+            public boolean contains( Object o )
+            {
+                return item.containsKey( o );
+            }
+
+            @Override
+            public boolean remove( Object o )
+            {
+                final boolean present = item.containsKey( o );
+                item.remove( o );
+                return present;
+            }
+
+            @Override
+            public void clear()
+            {
+                item.clear();
+            }
+        };
+    }
+
+    static Collection< Object > values( AbstractModelItem item, Supplier< Iterator< Map.Entry< String, Object > > > entries )
+    {
+        return new AbstractCollection< Object >()
+        {
+            @Override
+            public Iterator< Object > iterator()
+            {
+                return new ViewIterator<>( item, entries.get(), Map.Entry::getValue );
+            }
+
+            @Override
+            public int size()
+            {
+                return item.size();
+            }
+
+            @Override
+            public boolean contains( Object o )
+            {
+                return item.containsValue( o );
+            }
+
+            @Override
+            public void clear()
+            {
+                item.clear();
+            }
+        };
+    }
+
+    /**
+     * Iterates over the supplied entries, removing through to the item.
+     */
+    private static final class ViewIterator< T > implements Iterator< T >
+    {
+        private final AbstractModelItem item;
+        private final Iterator< Map.Entry< String, Object > > entries;
+        private final Function< Map.Entry< String, Object >, T > mapper;
+        private Map.Entry< String, Object > last;
+
+        private ViewIterator( AbstractModelItem item, Iterator< Map.Entry< String, Object > > entries, Function< Map.Entry< String, Object >, T > mapper )
+        {
+            this.item = item;
+            this.entries = entries;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return entries.hasNext();
+        }
+
+        @Override
+        public T next()
+        {
+            last = entries.next();
+            return mapper.apply( last );
+        }
+
+        @Override
+        public void remove()
+        {
+            if ( last == null )
+            {
+                throw new IllegalStateException();
+            }
+            item.remove( last.getKey() );
+            last = null;
+        }
+    }
+
+    /**
+     * An entry that puts any new value into the item.
+     */
+    private static final class WriteThroughEntry extends AbstractMap.SimpleEntry< String, Object >
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient AbstractModelItem item;
+
+        private WriteThroughEntry( AbstractModelItem item, Map.Entry< String, Object > entry )
+        {
+            super( entry );
+            this.item = item;
+        }
+
+        @Override
+        public Object setValue( Object value )
+        {
+            item.put( getKey(), value );
+            return super.setValue( value );
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.brentcroft.tools.model;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Builds a Model tree in a single pass over a JSON token stream.
+ * <p>
+ * Each JSON object becomes a new item, named and parented as it is parsed;
+ * arrays and scalars are read as plain values (as by <code>JSON_MAPPER</code>).
+ * <p>
+ * Once the whole document is built, every new item is introspected,
+ * children before parents, as by <code>Model.transformMapsToModels()</code>.
+ */
+class JsonModelBuilder
+{
+    private final Model factory;
+    private final List< Model > created = new ArrayList<>();
+
+    /**
+     * @param factory provides new items via <code>newItem()</code>
+     */
+    JsonModelBuilder( Model factory )
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * Build a new item from the next JSON object in the stream.
+     *
+     * @param parser              the JSON token stream
+     * @param parent              the parent of the new item
+     * @param beforeIntrospection applied to the new item before any item is introspected
+     * @return the new item
+     * @throws IOException if the stream is not a valid JSON object
+     */
+    Model build( JsonParser parser, Map< String, Object > parent, Consumer< Model > beforeIntrospection ) throws IOException
+    {
+        if ( parser.nextToken() != JsonToken.START_OBJECT )
+        {
+            throw new JsonParseException( parser, "Expected a JSON object" );
+        }
+        Model item = readObject( parser, parent, null );
+        beforeIntrospection.accept( item );
+        created.forEach( Model::introspectEntries );
+        return item;
+    }
+
+    private Model readObject( JsonParser parser, Map< String, Object > parent, String name ) throws IOException
+    {
+        Model item = factory.newItem();
+        if ( name != null )
+        {
+            item.setName( name );
+        }
+        item.setParent( parent );
+
+        for ( String key = parser.nextFieldName(); key != null; key = parser.nextFieldName() )
+        {
+            if ( parser.nextToken() == JsonToken.START_OBJECT )
+            {
+                item.put( key, readObject( parser, item, key ) );
+            }
+            else
+            {
+                item.put( key, parser.readValueAs( Object.class ) );
+            }
+        }
+        created.add( item );
+        return item;
+    }
+}
@@ -0,0 +1,29 @@
+package com.brentcroft.tools.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded, access-ordered map that evicts its least recently used entry.
+ * <p>
+ * Not thread-safe: wrap with <code>Collections.synchronizedMap</code> when shared.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+class LruCache< K, V > extends LinkedHashMap< K, V >
+{
+    private final int maxSize;
+
+    LruCache( int maxSize )
+    {
+        super( 16, 0.75f, true );
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry( Map.Entry< K, V > eldest )
+    {
+        return size() > maxSize;
+    }
+}
@@ -1,14 +1,24 @@
 package com.brentcroft.tools.model;
 
 import com.brentcroft.tools.materializer.Materializer;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.xml.sax.InputSource;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -40,9 +50,55 @@ public interface Model extends Map< String, Object >
         }
     }
 
+    /**
+     * The dispatcher of events fired by this item, or null if events are passed to <code>notifyModelEvent</code>.
+     *
+     * @return the event dispatcher of this item
+     */
+    default ModelEventDispatcher getEventDispatcher()
+    {
+        return null;
+    }
+
+    /**
+     * Fires an event to the event dispatcher, if there is one, or else to <code>notifyModelEvent</code>.
+     * <p>
+     * The message is only built if a listener asks for it.
+     *
+     * @param eventType the event type
+     * @param message   supplies the message
+     */
+    default void fireModelEvent( ModelEvent.EventType eventType, Supplier< String > message )
+    {
+        fireModelEvent( eventType, message, null );
+    }
+
+    default void fireModelEvent( ModelEvent.EventType eventType, Supplier< String > message, Throwable exception )
+    {
+        final ModelEventDispatcher dispatcher = getEventDispatcher();
+        if ( dispatcher == null )
+        {
+            notifyModelEvent( eventType.newLazyEvent( this, message, exception ) );
+        }
+        else
+        {
+            dispatcher.fire( this, eventType, message, exception );
+        }
+    }
+
 
     Object set( String key, Object value );
 
+    /**
+     * The metrics recorded by this item, or null if metrics are not enabled.
+     *
+     * @return the metrics of this item
+     */
+    default ModelMetrics getMetrics()
+    {
+        return null;
+    }
+
     /**
      * Expands a value using the expander
      * or else just returns the value.
@@ -52,6 +108,15 @@ public interface Model extends Map< String, Object >
      */
     default String expand( String value )
     {
+        if ( ! isExpandable( value ) )
+        {
+            return value;
+        }
+        final ModelMetrics metrics = getMetrics();
+        if ( metrics != null )
+        {
+            metrics.recordExpansion();
+        }
         final Map< String, Object > bindings = newContainer();
         return Optional
                 .ofNullable( getExpander() )
@@ -73,26 +138,107 @@ public interface Model extends Map< String, Object >
         return Optional
                 .ofNullable( getEvaluator() )
                 .map( evaluator -> {
-                    Object[] lastResult = { null };
-                    Model
-                            .stepsStream( value )
-                            .forEach( step -> lastResult[ 0 ] = getEvaluator().apply( step, bindings ) );
-                    return lastResult[ 0 ];
+                    Object lastResult = null;
+                    for ( String step : StepProgram.of( value ).getSteps() )
+                    {
+                        lastResult = evaluator.apply( step, bindings );
+                    }
+                    return lastResult;
                 } )
                 .orElse( null );
     }
 
+    /**
+     * Expands each value, in order, sharing one bindings container across the whole batch
+     * rather than creating one per value (see {@link #expand(String)}).
+     * <p>
+     * Values without expansion markers are returned untouched,
+     * and no container is created unless some value needs one.
+     *
+     * @param values the values to be expanded
+     * @return the expanded values, in the same order
+     */
+    default List< String > expandAll( List< String > values )
+    {
+        final Expander expander = getExpander();
+        final ModelMetrics metrics = getMetrics();
+        final List< String > results = new ArrayList<>( values.size() );
+        Map< String, Object > bindings = null;
+        for ( String value : values )
+        {
+            if ( expander == null || ! isExpandable( value ) )
+            {
+                results.add( value );
+                continue;
+            }
+            if ( metrics != null )
+            {
+                metrics.recordExpansion();
+            }
+            if ( bindings == null )
+            {
+                bindings = newContainer();
+            }
+            results.add( expander.apply( value, bindings ) );
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates each value, in order, sharing one bindings container across the whole batch
+     * rather than creating one per value (see {@link #eval(String)}),
+     * so any local variable assigned by one value is visible to the values after it.
+     *
+     * @param values the values to be evaluated
+     * @return the result of each value, in the same order, or nulls if there is no evaluator
+     */
+    default List< Object > evalAll( List< String > values )
+    {
+        final Evaluator evaluator = getEvaluator();
+        if ( evaluator == null )
+        {
+            return new ArrayList<>( Collections.nCopies( values.size(), null ) );
+        }
+        final Map< String, Object > bindings = newContainer();
+        final List< Object > results = new ArrayList<>( values.size() );
+        for ( String value : values )
+        {
+            Object lastResult = null;
+            for ( String step : StepProgram.of( value ).getSteps() )
+            {
+                lastResult = evaluator.apply( step, bindings );
+            }
+            results.add( lastResult );
+        }
+        return results;
+    }
+
     Map< String, Object > newContainer();
 
+    /**
+     * True if the value contains any expansion markers
+     * (i.e. <code>${</code>, <code>#{</code> or a <code>&lt;c:</code> tag)
+     * and so might be changed by the expander.
+     * <p>
+     * Values without markers are returned from <code>expand( value )</code> untouched,
+     * without creating a bindings container or calling the expander.
+     *
+     * @param value the value to be tested
+     * @return true if the value might be changed by expansion
+     */
+    static boolean isExpandable( String value )
+    {
+        return value != null
+                && ( value.contains( "${" )
+                || value.contains( "#{" )
+                || value.contains( "<c:" ) );
+    }
+
     static Stream< String > stepsStream( String value )
     {
-        String uncommented = Stream
-                .of( value.split( "\\s*[\\n\\r]+\\s*" ) )
-                .filter( v -> ! v.isEmpty() && ! v.startsWith( "#" ) )
-                .map( String::trim )
-                .collect( Collectors.joining( " " ) );
-        return Stream
-                .of( uncommented.split( "\\s*[;]+\\s*" ) );
+        return StepProgram
+                .of( value )
+                .stream();
     }
 
     static String stepsText( Object text )
@@ -124,9 +270,16 @@ public interface Model extends Map< String, Object >
         return steps( steps, this );
     }
 
+    /**
+     * Runs the steps of a key, so their metrics are keyed by the key rather than by the step text.
+     *
+     * @param key  the key of the steps
+     * @param args the arguments of the call
+     * @return the result of the last step
+     */
     default Object call( String key, Map< String, Object > args )
     {
-        return steps( ( String ) get( key ), args );
+        return AbstractModelItem.callSteps( this, key, args );
     }
 
     default Object call( String key )
@@ -134,8 +287,120 @@ public interface Model extends Map< String, Object >
         return call( key, this );
     }
 
+    /**
+     * Calls the steps of a key on the shared step executor,
+     * which uses a virtual thread for each call when the JVM supports them.
+     * <p>
+     * The call sees the local scopes of the calling thread, but runs in its own scope,
+     * so any number of calls can run at once.
+     * Calls that change the entries of a shared item should use a concurrent item
+     * (see {@link AbstractConcurrentModelItem}).
+     *
+     * @param key  the key of the steps
+     * @param args the arguments of the call
+     * @return a future of the result of the steps
+     */
+    default CompletableFuture< Object > callAsync( String key, Map< String, Object > args )
+    {
+        return AbstractModelItem.supplyAsync( () -> call( key, args ) );
+    }
+
+    default CompletableFuture< Object > callAsync( String key )
+    {
+        return callAsync( key, this );
+    }
+
+    /**
+     * Calls the steps of a key on the shared step executor (see {@link #callAsync(String, Map)})
+     * once the operation delay has passed (see {@link #maybeDelayAsync()}),
+     * so, unlike steps calling <code>maybeDelay()</code>, no thread is held while waiting.
+     *
+     * @param key  the key of the steps
+     * @param args the arguments of the call
+     * @return a future of the result of the steps
+     */
+    default CompletableFuture< Object > callDelayedAsync( String key, Map< String, Object > args )
+    {
+        return AbstractModelItem.supplyAsync( maybeDelayAsync(), () -> call( key, args ) );
+    }
+
+    default CompletableFuture< Object > callDelayedAsync( String key )
+    {
+        return callDelayedAsync( key, this );
+    }
+
+    /**
+     * Calls the steps of each key concurrently (see {@link #callAsync(String, Map)}),
+     * and waits for every call to complete.
+     *
+     * @param keys the keys of the steps
+     * @return the result of each call, in the order of the keys
+     * @throws ModelException if any call failed, having a failure as its cause
+     */
+    default List< Object > callAll( Collection< String > keys )
+    {
+        final List< CompletableFuture< Object > > calls = keys
+                .stream()
+                .map( this::callAsync )
+                .collect( Collectors.toList() );
+        try
+        {
+            CompletableFuture
+                    .allOf( calls.toArray( new CompletableFuture[ 0 ] ) )
+                    .join();
+        }
+        catch ( CompletionException e )
+        {
+            throw new ModelException( format( "Failed to call all: %s at path: %s", keys, path() ), e.getCause() );
+        }
+        return calls
+                .stream()
+                .map( CompletableFuture::join )
+                .collect( Collectors.toList() );
+    }
+
     String toJson();
 
+    /**
+     * Streams this item as JSON to the writer, without building the whole document in memory.
+     * <p>
+     * The writer is flushed but not closed.
+     *
+     * @param writer the target
+     * @param expand true to write string values expanded, or false to write them as stored
+     */
+    default void toJson( Writer writer, boolean expand )
+    {
+        try ( JsonGenerator generator = AbstractModelItem.getJsonWriter().createGenerator( writer ) )
+        {
+            ModelJsonWriter.write( generator, this, expand );
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( format( "Failed to write JSON at path: %s", path() ), e );
+        }
+    }
+
+    /**
+     * Streams this item as UTF-8 encoded JSON to the output stream, without building the whole document in memory.
+     * <p>
+     * The stream is flushed but not closed.
+     *
+     * @param outputStream the target
+     * @param expand       true to write string values expanded, or false to write them as stored
+     */
+    default void toJson( OutputStream outputStream, boolean expand )
+    {
+        try ( JsonGenerator generator = AbstractModelItem.getJsonWriter().createGenerator( outputStream, JsonEncoding.UTF8 ) )
+        {
+            ModelJsonWriter.write( generator, this, expand );
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( format( "Failed to write JSON at path: %s", path() ), e );
+        }
+    }
+
     Model getSelf();
 
     String getName();
@@ -152,11 +417,40 @@ public interface Model extends Map< String, Object >
 
     Class< ? extends Model > getModelClass();
 
-    Model newItemFromJson( String jsonText );
+    default Model newItemFromJson( String jsonText )
+    {
+        try
+        {
+            return AbstractModelItem.JSON_MAPPER.readValue( jsonText, getModelClass() );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new ModelException( format( "JSON text failed to materialize: %s", jsonText ), e );
+        }
+    }
 
     void introspectEntries();
 
-    File getLocalFile( String filePath );
+    /**
+     * The file at a path, either as it is, or else relative to the current directory of this item.
+     *
+     * @param filePath the path of the file
+     * @return the file
+     * @throws IllegalArgumentException if the file does not exist
+     */
+    default File getLocalFile( String filePath )
+    {
+        return Optional
+                .of( new File( filePath ) )
+                .filter( File::exists )
+                .orElseGet( () -> {
+                    File cd = getCurrentDirectory().toFile();
+                    return Optional
+                            .of( new File( cd, filePath ) )
+                            .filter( File::exists )
+                            .orElseThrow( () -> new IllegalArgumentException( format( "Local file does not exist: %s/%s", cd, filePath ) ) );
+                } );
+    }
 
     void filteredPutAll( Map< ? extends String, ? > item );
 
@@ -190,9 +484,26 @@ public interface Model extends Map< String, Object >
     }
 
     default Model appendFromXml( InputSource inputSource )
+    {
+        Model item = newChildFromXml( this, inputSource );
+        filteredPutAll( item );
+        return item;
+    }
+
+    /**
+     * Constructs a new child item by materializing the supplied XML
+     * and then returns the new child item.
+     * <p>
+     * The new child item's current directory is set from the input source's system id, if any.
+     *
+     * @param parent      the parent of the new child item
+     * @param inputSource XML to construct a new Model
+     * @return the new child item
+     */
+    default Model newChildFromXml( Map< String, Object > parent, InputSource inputSource )
     {
         Model item = newItem();
-        item.setParent( this );
+        item.setParent( parent );
 
         Optional
                 .ofNullable( inputSource.getSystemId() )
@@ -204,7 +515,6 @@ public interface Model extends Map< String, Object >
                 () -> ModelRootTag.DOCUMENT_ROOT,
                 () -> item );
         materializer.apply( inputSource );
-        filteredPutAll( item );
         return item;
     }
 
@@ -238,13 +548,20 @@ public interface Model extends Map< String, Object >
     /**
      * Navigate the supplied object path starting from this.
      * <p>
-     * Uses <code>eval( path )</code> and raises an exception if the result is not a Model
+     * Plain paths of keys and list indexes (e.g. <code>people.green</code> or <code>hues[1]</code>)
+     * are walked directly through the entries of each item (see {@link ItemPath}),
+     * otherwise uses <code>eval( path )</code>, and raises an exception if the result is not a Model
      *
      * @param path an object path
      * @return a Model
      */
     default Model getItem( String path )
     {
+        final Model item = ItemPath.navigate( this, path );
+        if ( item != null )
+        {
+            return item;
+        }
         Object node = eval( path );
         if ( node instanceof Model )
         {
@@ -318,7 +635,138 @@ public interface Model extends Map< String, Object >
         }
     }
 
-    void maybeDelay();
+    /**
+     * The value of <code>$operationDelayMillis</code>, or 100 if there is none.
+     *
+     * @return the operation delay in milliseconds
+     */
+    default long getOperationDelayMillis()
+    {
+        final Object delay = getOrDefault( AbstractModelItem.OPERATION_DELAY_MILLIS, 100L );
+        return delay instanceof Number
+               ? ( ( Number ) delay ).longValue()
+               : Long.parseLong( delay.toString().trim() );
+    }
+
+    /**
+     * Blocks the current thread for the operation delay (see {@link #getOperationDelayMillis()}),
+     * recording the time delayed in any metrics.
+     * <p>
+     * If interrupted, returns early with the interrupt status of the thread set.
+     */
+    default void maybeDelay()
+    {
+        final long delay = getOperationDelayMillis();
+        if ( delay <= 0 )
+        {
+            return;
+        }
+        final long started = System.nanoTime();
+        try
+        {
+            Thread.sleep( delay );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            final ModelMetrics metrics = getMetrics();
+            if ( metrics != null )
+            {
+                metrics.recordDelay( path(), System.nanoTime() - started );
+            }
+        }
+    }
+
+    /**
+     * A future completing after the operation delay (see {@link #getOperationDelayMillis()}),
+     * without blocking any thread while waiting,
+     * recording the time delayed in any metrics.
+     * <p>
+     * The future completes on the shared step executor (see {@link #callAsync(String, Map)}),
+     * so dependent actions do not run on the scheduler thread.
+     *
+     * @return a future completing after the delay
+     */
+    default CompletableFuture< Void > maybeDelayAsync()
+    {
+        final long delay = getOperationDelayMillis();
+        if ( delay <= 0 )
+        {
+            return CompletableFuture.completedFuture( null );
+        }
+        final ModelMetrics metrics = getMetrics();
+        final String path = path();
+        final long started = System.nanoTime();
+        final CompletableFuture< Void > delayed = new CompletableFuture<>();
+        StepExecutor
+                .scheduler()
+                .schedule( () -> StepExecutor.get().execute( () -> {
+                    if ( metrics != null )
+                    {
+                        metrics.recordDelay( path, System.nanoTime() - started );
+                    }
+                    delayed.complete( null );
+                } ), delay, TimeUnit.MILLISECONDS );
+        return delayed;
+    }
+
+    /**
+     * Creates an immutable snapshot of this item and its descendants (see {@link FrozenModel}).
+     * <p>
+     * The snapshot can be read from any number of threads without locking,
+     * but any attempt to change it throws an UnsupportedOperationException.
+     *
+     * @return a frozen copy of this item
+     */
+    default Model freeze()
+    {
+        return FrozenModel.freeze( this );
+    }
+
+    /**
+     * Creates a copy-on-write overlay of this item (see {@link AbstractModelItem#newFork(Model)}).
+     * <p>
+     * The fork reads through to this item,
+     * and only holds the entries that are put, set or removed on it,
+     * so creating and changing a fork costs in proportion to the changes.
+     *
+     * @return a new fork of this item
+     */
+    default Model fork()
+    {
+        return AbstractModelItem.newFork( this );
+    }
+
+    /**
+     * Writes this item and its descendants to a binary snapshot file,
+     * unless they hold any value a snapshot does not support (e.g. a lambda),
+     * in which case any existing snapshot file is removed, so reading it is a miss.
+     *
+     * @param path the snapshot file
+     * @return true if the snapshot was written
+     */
+    default boolean writeSnapshot( Path path )
+    {
+        return ModelSnapshot.write( this, path );
+    }
+
+    /**
+     * Reads a snapshot file written by <code>writeSnapshot( path )</code> into this item,
+     * unless the file does not exist, has a different format,
+     * or any of its source files has changed since it was written.
+     * <p>
+     * The entries are restored as they were written, and are not introspected again.
+     *
+     * @param path the snapshot file
+     * @return true if the snapshot was read
+     */
+    default boolean readSnapshot( Path path )
+    {
+        return ModelSnapshot.read( this, path );
+    }
 
     interface Expander extends BiFunction< String, Map< String, Object >, String >
     {
@@ -1,17 +1,57 @@
 package com.brentcroft.tools.model;
 
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Getter;
 
-@AllArgsConstructor
+import java.util.function.Supplier;
+
 @Getter
 public class ModelEvent
 {
     private EventType eventType;
     private Model source;
-    private String message;
+    @Getter( AccessLevel.NONE )
+    private volatile String message;
+    @Getter( AccessLevel.NONE )
+    private volatile Supplier< String > messageSupplier;
     private Throwable exception;
 
+    public ModelEvent( EventType eventType, Model source, String message, Throwable exception )
+    {
+        this.eventType = eventType;
+        this.source = source;
+        this.message = message;
+        this.exception = exception;
+    }
+
+    /**
+     * Creates an event whose message is only built when it is first requested,
+     * so that events nobody reads cost nothing to format (see {@link EventType#newLazyEvent(Model, Supplier, Throwable)}).
+     *
+     * @param eventType       the event type
+     * @param source          the source of the event
+     * @param messageSupplier supplies the message
+     * @param exception       any exception
+     */
+    private ModelEvent( EventType eventType, Model source, Supplier< String > messageSupplier, Throwable exception )
+    {
+        this.eventType = eventType;
+        this.source = source;
+        this.messageSupplier = messageSupplier;
+        this.exception = exception;
+    }
+
+    public String getMessage()
+    {
+        final Supplier< String > supplier = messageSupplier;
+        if ( supplier != null )
+        {
+            message = supplier.get();
+            messageSupplier = null;
+        }
+        return message;
+    }
+
     public enum EventType
     {
         MESSAGE,
@@ -19,7 +59,8 @@ public class ModelEvent
         WHILE_DO_TEST,
         WHILE_DO_OPERATION,
         STEPS_START,
-        STEP_START;
+        STEP_START,
+        RELOAD;
 
         public ModelEvent newEvent( Model source, String message )
         {
@@ -30,5 +71,22 @@ public class ModelEvent
         {
             return new ModelEvent( this, source, message, exception );
         }
+
+        /**
+         * Creates an event whose message is only built when it is first requested.
+         *
+         * @param source  the source of the event
+         * @param message supplies the message
+         * @return the event
+         */
+        public ModelEvent newLazyEvent( Model source, Supplier< String > message )
+        {
+            return newLazyEvent( source, message, null );
+        }
+
+        public ModelEvent newLazyEvent( Model source, Supplier< String > message, Throwable exception )
+        {
+            return new ModelEvent( this, source, message, exception );
+        }
     }
 }
@@ -0,0 +1,281 @@
+package com.brentcroft.tools.model;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Delivers ModelEvents to listeners subscribed by event type, on a background daemon thread.
+ * <p>
+ * Events are handed over through a bounded lock-free ring buffer,
+ * so firing an event does not block the calling thread while there is space.
+ * When the buffer is full the calling thread waits for space,
+ * so no event is lost, slow listeners apply back-pressure,
+ * and events are delivered in the order they were queued.
+ * <p>
+ * Only two kinds of event skip the queue and are delivered at once on the calling thread,
+ * and so may be delivered ahead of events still queued:
+ * an event fired by a listener (i.e. on the dispatch thread) while the buffer is full,
+ * and an event fired once the dispatcher is closed.
+ * <p>
+ * A listener that fails is reported as an EXCEPTION event passed to
+ * <code>notifyModelEvent</code> of the source of the event,
+ * and does not stop delivery to other listeners.
+ * <p>
+ * Firing an event of a type having no listeners does nothing,
+ * and does not build the event or its message.
+ * Messages are supplied lazily, and so are formatted on the dispatch thread, if at all.
+ * <p>
+ * A dispatcher is configured on the root item (see <code>AbstractModelItem.setEventDispatcher()</code>),
+ * and then replaces <code>notifyModelEvent</code> for every item in the tree.
+ */
+public class ModelEventDispatcher implements AutoCloseable
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+    private final Map< ModelEvent.EventType, List< Consumer< ModelEvent > > > listeners = new EnumMap<>( ModelEvent.EventType.class );
+
+    private final AtomicReferenceArray< ModelEvent > buffer;
+    private final int mask;
+
+    /**
+     * The sequence of the next slot to be claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The sequence of the next slot to be consumed by the dispatch thread.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    private final Thread thread;
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    public ModelEventDispatcher()
+    {
+        this( DEFAULT_CAPACITY );
+    }
+
+    /**
+     * @param capacity the size of the ring buffer, rounded up to a power of two
+     */
+    public ModelEventDispatcher( int capacity )
+    {
+        int size = 2;
+        while ( size < capacity )
+        {
+            size <<= 1;
+        }
+        buffer = new AtomicReferenceArray<>( size );
+        mask = size - 1;
+
+        for ( ModelEvent.EventType eventType : ModelEvent.EventType.values() )
+        {
+            listeners.put( eventType, new CopyOnWriteArrayList<>() );
+        }
+
+        thread = new Thread( this::dispatchLoop, "model-event-dispatcher" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    public ModelEventDispatcher subscribe( ModelEvent.EventType eventType, Consumer< ModelEvent > listener )
+    {
+        listeners.get( eventType ).add( listener );
+        return this;
+    }
+
+    public ModelEventDispatcher subscribeAll( Consumer< ModelEvent > listener )
+    {
+        for ( ModelEvent.EventType eventType : ModelEvent.EventType.values() )
+        {
+            subscribe( eventType, listener );
+        }
+        return this;
+    }
+
+    public void unsubscribe( ModelEvent.EventType eventType, Consumer< ModelEvent > listener )
+    {
+        listeners.get( eventType ).remove( listener );
+    }
+
+    public void unsubscribeAll( Consumer< ModelEvent > listener )
+    {
+        listeners.values().forEach( list -> list.remove( listener ) );
+    }
+
+    public boolean hasListeners( ModelEvent.EventType eventType )
+    {
+        return ! listeners.get( eventType ).isEmpty();
+    }
+
+    /**
+     * Fires an event, unless there are no listeners for its type.
+     *
+     * @param source    the source of the event
+     * @param eventType the event type
+     * @param message   supplies the message, when a listener asks for it
+     * @param exception any exception
+     */
+    public void fire( Model source, ModelEvent.EventType eventType, Supplier< String > message, Throwable exception )
+    {
+        if ( hasListeners( eventType ) )
+        {
+            dispatch( eventType.newLazyEvent( source, message, exception ) );
+        }
+    }
+
+    /**
+     * Queues the event for the dispatch thread, waiting while the buffer is full,
+     * or delivers it on the calling thread if this dispatcher is closed,
+     * or if the calling thread is the dispatch thread and the buffer is full.
+     *
+     * @param event the event
+     */
+    public void dispatch( ModelEvent event )
+    {
+        while ( ! closed )
+        {
+            if ( offer( event ) )
+            {
+                return;
+            }
+            if ( Thread.currentThread() == thread )
+            {
+                break;
+            }
+            LockSupport.unpark( thread );
+            Thread.yield();
+        }
+        deliver( event );
+    }
+
+    private boolean offer( ModelEvent event )
+    {
+        while ( true )
+        {
+            final long sequence = tail.get();
+            if ( sequence - head.get() > mask )
+            {
+                return false;
+            }
+            if ( tail.compareAndSet( sequence, sequence + 1 ) )
+            {
+                buffer.set( ( int ) ( sequence & mask ), event );
+                if ( idle )
+                {
+                    LockSupport.unpark( thread );
+                }
+                return true;
+            }
+        }
+    }
+
+    private void dispatchLoop()
+    {
+        while ( ! closed || head.get() != tail.get() )
+        {
+            final long sequence = head.get();
+            final int slot = ( int ) ( sequence & mask );
+            final ModelEvent event = buffer.get( slot );
+            if ( event == null )
+            {
+                if ( sequence == tail.get() )
+                {
+                    // nothing claimed: wait for a producer, re-checking after advertising idleness
+                    idle = true;
+                    if ( sequence == tail.get() && ! closed )
+                    {
+                        LockSupport.parkNanos( this, IDLE_PARK_NANOS );
+                    }
+                    idle = false;
+                }
+                else
+                {
+                    // claimed but not yet published
+                    Thread.yield();
+                }
+                continue;
+            }
+            buffer.set( slot, null );
+            deliver( event );
+            head.set( sequence + 1 );
+        }
+    }
+
+    private void deliver( ModelEvent event )
+    {
+        for ( Consumer< ModelEvent > listener : listeners.get( event.getEventType() ) )
+        {
+            try
+            {
+                listener.accept( event );
+            }
+            catch ( RuntimeException e )
+            {
+                final Model source = event.getSource();
+                if ( source != null )
+                {
+                    source.notifyModelEvent(
+                            ModelEvent.EventType.EXCEPTION.newEvent(
+                                    source,
+                                    format( "Listener failed on event: %s", event.getEventType() ),
+                                    e ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until every queued event has been delivered.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @return true if every queued event was delivered in time
+     */
+    public boolean flush( long timeoutMillis )
+    {
+        final long target = tail.get();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        while ( head.get() < target )
+        {
+            if ( System.nanoTime() > deadline )
+            {
+                return false;
+            }
+            LockSupport.unpark( thread );
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * Delivers any queued events and stops the dispatch thread.
+     * Events fired after closing are delivered on the calling thread.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark( thread );
+        try
+        {
+            thread.join();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.brentcroft.tools.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Streams a Model tree to a JsonGenerator,
+ * writing the entries of each item either as stored or with string values expanded.
+ */
+final class ModelJsonWriter
+{
+    private ModelJsonWriter()
+    {
+    }
+
+    /**
+     * Writes the item to the generator.
+     * <p>
+     * When expanding, each string value of an item is written as returned by <code>get( key )</code>,
+     * while strings inside Lists and other Maps are written as stored.
+     *
+     * @param generator the generator
+     * @param model     the item to write
+     * @param expand    true to expand string values
+     * @throws IOException if writing fails
+     */
+    static void write( JsonGenerator generator, Model model, boolean expand ) throws IOException
+    {
+        if ( ! expand )
+        {
+            generator.writeObject( model );
+            return;
+        }
+        generator.writeStartObject();
+        for ( Map.Entry< String, Object > entry : model.entrySet() )
+        {
+            final Object value = entry.getValue();
+            generator.writeFieldName( entry.getKey() );
+            if ( value instanceof Model )
+            {
+                write( generator, ( Model ) value, true );
+            }
+            else if ( value instanceof String )
+            {
+                generator.writeString( String.valueOf( model.get( entry.getKey() ) ) );
+            }
+            else
+            {
+                generator.writeObject( value );
+            }
+        }
+        generator.writeEndObject();
+    }
+}
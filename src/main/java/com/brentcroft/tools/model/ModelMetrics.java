@@ -0,0 +1,404 @@
+package com.brentcroft.tools.model;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Counts calls, expansions and exceptions, and times steps and delays, for a tree of Models.
+ * <p>
+ * Metrics are disabled unless an instance is set on the root item (see <code>AbstractModelItem.setMetrics()</code>),
+ * and every item in the tree then records into the metrics of its root.
+ * <p>
+ * Calls are keyed by the path of the called key (e.g. <code>people.green.run</code>),
+ * and steps by the path of the called key and the index of the step (e.g. <code>people.green.run[0]</code>),
+ * where steps that were not called from a key are keyed as <code>(inline)</code> (e.g. <code>people.green.(inline)[0]</code>),
+ * so the number of keys is bounded by the tree, and not by the step text.
+ * <p>
+ * Counters and timings are recorded without locking, so one instance can be shared by any number of threads,
+ * and can be exposed over JMX using <code>register( name )</code>.
+ * Only a step that raises an exception briefly takes a lock, to check whether a nested step already counted it.
+ */
+public class ModelMetrics implements ModelMetricsMXBean
+{
+    public static final String JMX_DOMAIN = "com.brentcroft.tools.model";
+
+    private final Map< String, LongAdder > calls = new ConcurrentHashMap<>();
+    private final Map< String, StepStatistics > steps = new ConcurrentHashMap<>();
+    private final Map< String, StepStatistics > reloads = new ConcurrentHashMap<>();
+    private final Map< String, StepStatistics > delays = new ConcurrentHashMap<>();
+    private final LongAdder expansions = new LongAdder();
+    private final LongAdder exceptions = new LongAdder();
+
+    /**
+     * The exceptions already recorded, held weakly and compared by identity,
+     * so an exception escaping from nested steps is only counted where it was first raised.
+     */
+    private final Set< Throwable > recordedExceptions = Collections.newSetFromMap( Collections.synchronizedMap( new WeakHashMap<>() ) );
+
+    private ObjectName objectName;
+
+    public void recordCall( String key )
+    {
+        calls.computeIfAbsent( key, k -> new LongAdder() ).increment();
+    }
+
+    public void recordExpansion()
+    {
+        expansions.increment();
+    }
+
+    public void recordStep( String key, long nanos )
+    {
+        statistics( key ).record( nanos );
+    }
+
+    /**
+     * Records a step that raised an exception,
+     * unless the exception, or one of its causes, has already been recorded by a nested step.
+     *
+     * @param key       the step key
+     * @param nanos     the time taken
+     * @param exception the exception raised
+     */
+    public void recordStepException( String key, long nanos, Throwable exception )
+    {
+        final StepStatistics statistics = statistics( key );
+        statistics.record( nanos );
+
+        boolean recorded = false;
+        for ( Throwable t = exception; t != null && ! recorded; t = t.getCause() )
+        {
+            recorded = recordedExceptions.contains( t );
+        }
+        recordedExceptions.add( exception );
+        if ( ! recorded )
+        {
+            statistics.exceptions.increment();
+            exceptions.increment();
+        }
+    }
+
+    /**
+     * Records the reload of an include file (see {@link ModelWatcher}).
+     *
+     * @param file  the reloaded file
+     * @param nanos the time taken
+     * @param ok    false if the reload failed
+     */
+    public void recordReload( String file, long nanos, boolean ok )
+    {
+        final StepStatistics statistics = reloads.computeIfAbsent( file, k -> new StepStatistics() );
+        statistics.record( nanos );
+        if ( ! ok )
+        {
+            statistics.exceptions.increment();
+            exceptions.increment();
+        }
+    }
+
+    /**
+     * The reload statistics of an include file, or null if the file has not been reloaded.
+     *
+     * @param file the file
+     * @return the reload statistics of the file
+     */
+    public StepStatistics getReloadStatistics( String file )
+    {
+        return reloads.get( file );
+    }
+
+    /**
+     * Records a deliberate delay (see <code>Model.maybeDelay()</code>),
+     * keyed by the path of the delayed item, where the root item has an empty path.
+     *
+     * @param path  the path of the delayed item
+     * @param nanos the time delayed
+     */
+    public void recordDelay( String path, long nanos )
+    {
+        delays.computeIfAbsent( path, k -> new StepStatistics() ).record( nanos );
+    }
+
+    /**
+     * The delay statistics of an item, or null if the item has not been delayed.
+     *
+     * @param path the path of the item
+     * @return the delay statistics of the item
+     */
+    public StepStatistics getDelayStatistics( String path )
+    {
+        return delays.get( path );
+    }
+
+    private StepStatistics statistics( String key )
+    {
+        return steps.computeIfAbsent( key, k -> new StepStatistics() );
+    }
+
+    /**
+     * The statistics of a step, or null if the step has not been recorded.
+     *
+     * @param key the step key
+     * @return the statistics of the step
+     */
+    public StepStatistics getStepStatistics( String key )
+    {
+        return steps.get( key );
+    }
+
+    /**
+     * The keys of the steps having the greatest total time, slowest first.
+     *
+     * @param limit the maximum number of keys
+     * @return the keys of the slowest steps
+     */
+    public List< String > getSlowestSteps( int limit )
+    {
+        return steps
+                .entrySet()
+                .stream()
+                .sorted( Comparator.comparingLong( ( Map.Entry< String, StepStatistics > e ) -> e.getValue().getTotalNanos() ).reversed() )
+                .limit( limit )
+                .map( Map.Entry::getKey )
+                .collect( Collectors.toList() );
+    }
+
+    @Override
+    public long getExpansionCount()
+    {
+        return expansions.sum();
+    }
+
+    @Override
+    public long getExceptionCount()
+    {
+        return exceptions.sum();
+    }
+
+    @Override
+    public Map< String, Long > getCallCounts()
+    {
+        return calls
+                .entrySet()
+                .stream()
+                .collect( Collectors.toMap( Map.Entry::getKey, e -> e.getValue().sum(), ( a, b ) -> a, TreeMap::new ) );
+    }
+
+    @Override
+    public Map< String, Long > getStepCounts()
+    {
+        return stepValues( StepStatistics::getCount );
+    }
+
+    @Override
+    public Map< String, Long > getStepMeanMicros()
+    {
+        return stepValues( s -> s.getMeanNanos() / 1000 );
+    }
+
+    @Override
+    public Map< String, Long > getStepMaxMicros()
+    {
+        return stepValues( s -> s.getMaxNanos() / 1000 );
+    }
+
+    @Override
+    public Map< String, Long > getStepP99Micros()
+    {
+        return stepValues( s -> s.getPercentileNanos( 0.99 ) / 1000 );
+    }
+
+    @Override
+    public Map< String, Long > getStepExceptionCounts()
+    {
+        return stepValues( StepStatistics::getExceptionCount );
+    }
+
+    @Override
+    public Map< String, Long > getReloadCounts()
+    {
+        return values( reloads, StepStatistics::getCount );
+    }
+
+    @Override
+    public Map< String, Long > getReloadMeanMicros()
+    {
+        return values( reloads, s -> s.getMeanNanos() / 1000 );
+    }
+
+    @Override
+    public Map< String, Long > getDelayCounts()
+    {
+        return values( delays, StepStatistics::getCount );
+    }
+
+    @Override
+    public Map< String, Long > getDelayTotalMillis()
+    {
+        return values( delays, s -> s.getTotalNanos() / 1000000 );
+    }
+
+    private Map< String, Long > stepValues( ToLongFunction< StepStatistics > value )
+    {
+        return values( steps, value );
+    }
+
+    private static Map< String, Long > values( Map< String, StepStatistics > statistics, ToLongFunction< StepStatistics > value )
+    {
+        return statistics
+                .entrySet()
+                .stream()
+                .collect( Collectors.toMap( Map.Entry::getKey, e -> value.applyAsLong( e.getValue() ), ( a, b ) -> a, TreeMap::new ) );
+    }
+
+    @Override
+    public void reset()
+    {
+        calls.clear();
+        steps.clear();
+        reloads.clear();
+        delays.clear();
+        expansions.reset();
+        exceptions.reset();
+        recordedExceptions.clear();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server,
+     * as <code>com.brentcroft.tools.model:type=ModelMetrics,name=&lt;name&gt;</code>.
+     *
+     * @param name the name of the metrics
+     * @return this
+     */
+    public synchronized ModelMetrics register( String name )
+    {
+        unregister();
+        try
+        {
+            final ObjectName on = new ObjectName( format( "%s:type=ModelMetrics,name=%s", JMX_DOMAIN, ObjectName.quote( name ) ) );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, on );
+            objectName = on;
+            return this;
+        }
+        catch ( JMException e )
+        {
+            throw new ModelException( format( "Failed to register metrics: %s", name ), e );
+        }
+    }
+
+    public synchronized void unregister()
+    {
+        if ( objectName == null )
+        {
+            return;
+        }
+        try
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if ( server.isRegistered( objectName ) )
+            {
+                server.unregisterMBean( objectName );
+            }
+        }
+        catch ( JMException e )
+        {
+            throw new ModelException( format( "Failed to unregister metrics: %s", objectName ), e );
+        }
+        finally
+        {
+            objectName = null;
+        }
+    }
+
+    /**
+     * Latency of a step, as a histogram with a bucket for each power of two nanoseconds.
+     */
+    public static class StepStatistics
+    {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final LongAdder exceptions = new LongAdder();
+
+        void record( long nanos )
+        {
+            final long value = Math.max( 0, nanos );
+            buckets.incrementAndGet( BUCKETS - 1 - Long.numberOfLeadingZeros( value | 1 ) );
+            count.increment();
+            totalNanos.add( value );
+            maxNanos.accumulateAndGet( value, Math::max );
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        public long getTotalNanos()
+        {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos()
+        {
+            return maxNanos.get();
+        }
+
+        public long getMeanNanos()
+        {
+            final long n = getCount();
+            return n == 0
+                   ? 0
+                   : getTotalNanos() / n;
+        }
+
+        public long getExceptionCount()
+        {
+            return exceptions.sum();
+        }
+
+        /**
+         * An upper bound of the latency below which the supplied fraction of steps completed,
+         * being the upper limit of the histogram bucket holding the percentile, or the maximum if that is less.
+         *
+         * @param fraction the percentile as a fraction (e.g. 0.99)
+         * @return the latency of the percentile in nanoseconds
+         */
+        public long getPercentileNanos( double fraction )
+        {
+            final long n = getCount();
+            if ( n == 0 )
+            {
+                return 0;
+            }
+            final long rank = ( long ) Math.ceil( fraction * n );
+            long seen = 0;
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                seen += buckets.get( i );
+                if ( seen >= rank )
+                {
+                    final long upper = i >= BUCKETS - 2
+                                       ? Long.MAX_VALUE
+                                       : ( 2L << i ) - 1;
+                    return Math.min( upper, getMaxNanos() );
+                }
+            }
+            return getMaxNanos();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.brentcroft.tools.model;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ModelMetrics}.
+ */
+public interface ModelMetricsMXBean
+{
+    long getExpansionCount();
+
+    long getExceptionCount();
+
+    Map< String, Long > getCallCounts();
+
+    Map< String, Long > getStepCounts();
+
+    Map< String, Long > getStepMeanMicros();
+
+    Map< String, Long > getStepMaxMicros();
+
+    Map< String, Long > getStepP99Micros();
+
+    Map< String, Long > getStepExceptionCounts();
+
+    Map< String, Long > getReloadCounts();
+
+    Map< String, Long > getReloadMeanMicros();
+
+    Map< String, Long > getDelayCounts();
+
+    Map< String, Long > getDelayTotalMillis();
+
+    void reset();
+}
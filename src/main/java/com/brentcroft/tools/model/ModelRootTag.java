@@ -15,7 +15,6 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
-import java.util.stream.Collectors;
 
 @Getter
 public enum ModelRootTag implements FlatTag< Model >
@@ -133,14 +132,11 @@ enum EntryTag implements FlatTag< Model >
             ( model, text, event ) -> {
 
                 String key = event.getAttribute( "key" );
-                String expression = Model
-                        .stepsStream( text.trim() )
-                        .collect( Collectors.joining( ";\n" ) );
-                model.put( key, expression );
-
-                // test compile expression
-                model.getELCompiler().apply( expression );
-                //model.put( "$" + key, compiledExpression );
+                StepProgram program = StepProgram.of( text.trim() );
+                model.put( key, program.getText() );
+
+                // test compile each step
+                program.compile( model.getELCompiler() );
 
                 // specification args
                 if (event.hasAttribute( "args")) {
@@ -0,0 +1,511 @@
+package com.brentcroft.tools.model;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static java.lang.String.format;
+
+/**
+ * Writes and reads a Model tree in a compact binary format,
+ * so a fully introspected tree can be restored without parsing or introspecting any source files.
+ * <p>
+ * The format is:
+ * <ul>
+ *     <li>a magic number and version</li>
+ *     <li>the source files of the tree (see <code>AbstractModelItem.getSourceFiles()</code>),
+ *     each with its last modified time and length</li>
+ *     <li>a table of every distinct string (names, keys and string values)</li>
+ *     <li>the tree of items, each being its name, its entries, each value being a type tag and its data,
+ *     and its include records, so the restored tree can be watched and reloaded (see <code>ModelWatcher</code>)</li>
+ * </ul>
+ * Values may be null, String, Boolean, Integer, Long, Double, BigInteger, BigDecimal,
+ * LocalDate, LocalDateTime, Duration, Model, Map or List.
+ * A tree holding any other value (e.g. a lambda) is not written,
+ * and any existing snapshot is removed, so the next read is a miss.
+ * <p>
+ * A snapshot is stale if any source file has been changed or removed since the snapshot was written.
+ * <p>
+ * A snapshot is written to a temporary file that is then moved into place,
+ * so a reader never sees a partly written snapshot,
+ * and a snapshot that cannot be parsed (e.g. truncated or corrupt) is treated like a stale one.
+ */
+final class ModelSnapshot
+{
+    private static final int MAGIC = 0x4D4F444C;
+    private static final int VERSION = 2;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte BIG_INTEGER = 6;
+    private static final byte BIG_DECIMAL = 7;
+    private static final byte DATE = 8;
+    private static final byte DATETIME = 9;
+    private static final byte DURATION = 10;
+    private static final byte MODEL = 11;
+    private static final byte MAP = 12;
+    private static final byte LIST = 13;
+
+    private ModelSnapshot()
+    {
+    }
+
+    /**
+     * Writes a snapshot of the tree, unless it holds a value that a snapshot does not support,
+     * in which case any existing snapshot is removed.
+     *
+     * @param model the item to write
+     * @param path  the snapshot file
+     * @return true if the snapshot was written
+     */
+    static boolean write( Model model, Path path )
+    {
+        final Map< String, Integer > strings = new LinkedHashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Path temp = null;
+        try
+        {
+            writeItem( new DataOutputStream( body ), model, strings );
+
+            temp = Files.createTempFile( path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp" );
+            try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( temp ) ) ) )
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+
+                final Collection< File > sourceFiles = model instanceof AbstractModelItem
+                                                       ? ( ( AbstractModelItem ) model ).getSourceFiles()
+                                                       : Collections.emptySet();
+                out.writeInt( sourceFiles.size() );
+                for ( File file : sourceFiles )
+                {
+                    writeString( out, file.getPath() );
+                    out.writeLong( file.lastModified() );
+                    out.writeLong( file.length() );
+                }
+
+                out.writeInt( strings.size() );
+                for ( String text : strings.keySet() )
+                {
+                    writeString( out, text );
+                }
+
+                body.writeTo( out );
+            }
+            moveIntoPlace( temp, path );
+            temp = null;
+            return true;
+        }
+        catch ( UnsupportedValueException e )
+        {
+            deleteSnapshot( path );
+            return false;
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( format( "Failed to write snapshot: %s", path ), e );
+        }
+        finally
+        {
+            if ( temp != null )
+            {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    private static void deleteSnapshot( Path path )
+    {
+        try
+        {
+            Files.deleteIfExists( path );
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( format( "Failed to remove snapshot: %s", path ), e );
+        }
+    }
+
+    private static void moveIntoPlace( Path temp, Path path ) throws IOException
+    {
+        try
+        {
+            Files.move( temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        }
+        catch ( AtomicMoveNotSupportedException e )
+        {
+            Files.move( temp, path, StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    /**
+     * Reads a snapshot into the supplied item,
+     * unless there is no snapshot, it has a different format, it is stale, or it cannot be parsed.
+     * <p>
+     * The tree is read into a new item, and only then are its entries and include records put into the supplied item,
+     * so nothing is put into the supplied item unless the whole snapshot is read.
+     * The name of the supplied item is kept.
+     *
+     * @param model the item to read into
+     * @param path  the snapshot file
+     * @return true if the snapshot was read
+     */
+    static boolean read( Model model, Path path )
+    {
+        if ( ! Files.isRegularFile( path ) )
+        {
+            return false;
+        }
+        final byte[] bytes;
+        try
+        {
+            bytes = Files.readAllBytes( path );
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( format( "Failed to read snapshot: %s", path ), e );
+        }
+        final List< File > sourceFiles = new ArrayList<>();
+        final Model restored = model.newItem();
+        restored.setParent( model.getParent() );
+        if ( ! parse( bytes, restored, sourceFiles ) )
+        {
+            return false;
+        }
+
+        restored.forEach( ( key, value ) -> {
+            if ( value instanceof Model )
+            {
+                model.put( key, value );
+            }
+            else
+            {
+                model.set( key, value );
+            }
+        } );
+        if ( model instanceof AbstractModelItem )
+        {
+            sourceFiles.forEach( ( ( AbstractModelItem ) model )::addSourceFile );
+            if ( restored instanceof AbstractModelItem )
+            {
+                ( ( AbstractModelItem ) model ).copyIncludesOf( ( AbstractModelItem ) restored );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the source files and the tree of a snapshot,
+     * returning false if it has a different format, it is stale, or it cannot be parsed.
+     */
+    private static boolean parse( byte[] bytes, Model restored, List< File > sourceFiles )
+    {
+        try ( DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) ) )
+        {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+            {
+                return false;
+            }
+
+            final int fileCount = readCount( in );
+            for ( int i = 0; i < fileCount; i++ )
+            {
+                final File file = new File( readString( in ) );
+                final long lastModified = in.readLong();
+                final long length = in.readLong();
+                if ( ! file.isFile() || file.lastModified() != lastModified || file.length() != length )
+                {
+                    return false;
+                }
+                sourceFiles.add( file );
+            }
+
+            final String[] strings = new String[ readCount( in ) ];
+            for ( int i = 0; i < strings.length; i++ )
+            {
+                strings[ i ] = readString( in );
+            }
+
+            readItem( in, restored, strings );
+            return true;
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            // truncated or corrupt
+            return false;
+        }
+    }
+
+    /**
+     * Reads a count of strings, entries or elements, each of which takes at least one more byte.
+     */
+    private static int readCount( DataInputStream in ) throws IOException
+    {
+        final int count = in.readInt();
+        if ( count < 0 || count > in.available() )
+        {
+            throw new IOException( format( "Bad count: %s", count ) );
+        }
+        return count;
+    }
+
+    private static void writeString( DataOutputStream out, String text ) throws IOException
+    {
+        final byte[] bytes = text.getBytes( StandardCharsets.UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        final byte[] bytes = new byte[ readCount( in ) ];
+        in.readFully( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static void writeIndex( DataOutputStream out, String text, Map< String, Integer > strings ) throws IOException
+    {
+        Integer index = strings.get( text );
+        if ( index == null )
+        {
+            index = strings.size();
+            strings.put( text, index );
+        }
+        out.writeInt( index );
+    }
+
+    private static void writeItem( DataOutputStream out, Model model, Map< String, Integer > strings ) throws IOException
+    {
+        writeIndex( out, model.getName(), strings );
+        final Set< Map.Entry< String, Object > > entries = model.entrySet();
+        out.writeInt( entries.size() );
+        for ( Map.Entry< String, Object > entry : entries )
+        {
+            writeIndex( out, entry.getKey(), strings );
+            writeValue( out, model, entry.getKey(), entry.getValue(), strings );
+        }
+        final List< IncludeRecord > records = model instanceof AbstractModelItem
+                                              ? ( ( AbstractModelItem ) model ).ownIncludeRecords()
+                                              : Collections.emptyList();
+        out.writeInt( records.size() );
+        for ( IncludeRecord record : records )
+        {
+            writeIndex( out, record.getFile().getPath(), strings );
+            out.writeByte( record.getKind().ordinal() );
+            final Set< String > keys = record.getKeys();
+            out.writeInt( keys.size() );
+            for ( String key : keys )
+            {
+                writeIndex( out, key, strings );
+            }
+        }
+    }
+
+    private static void readItem( DataInputStream in, Model model, String[] strings ) throws IOException
+    {
+        model.setName( strings[ in.readInt() ] );
+        final int size = readCount( in );
+        for ( int i = 0; i < size; i++ )
+        {
+            final String key = strings[ in.readInt() ];
+            final Object value = readValue( in, model, key, strings );
+            if ( value instanceof Model )
+            {
+                model.put( key, value );
+            }
+            else
+            {
+                model.set( key, value );
+            }
+        }
+        final int recordCount = readCount( in );
+        for ( int i = 0; i < recordCount; i++ )
+        {
+            final File file = new File( strings[ in.readInt() ] );
+            final IncludeRecord.Kind kind = IncludeRecord.Kind.values()[ in.readByte() ];
+            final int keyCount = readCount( in );
+            final Set< String > keys = new LinkedHashSet<>();
+            for ( int k = 0; k < keyCount; k++ )
+            {
+                keys.add( strings[ in.readInt() ] );
+            }
+            if ( model instanceof AbstractModelItem )
+            {
+                ( ( AbstractModelItem ) model ).addIncludeRecord( new IncludeRecord( ( AbstractModelItem ) model, file, kind, keys ) );
+            }
+        }
+    }
+
+    private static void writeValue( DataOutputStream out, Model model, String key, Object value, Map< String, Integer > strings ) throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeByte( NULL );
+        }
+        else if ( value instanceof String )
+        {
+            out.writeByte( STRING );
+            writeIndex( out, ( String ) value, strings );
+        }
+        else if ( value instanceof Boolean )
+        {
+            out.writeByte( BOOLEAN );
+            out.writeBoolean( ( Boolean ) value );
+        }
+        else if ( value instanceof Integer )
+        {
+            out.writeByte( INTEGER );
+            out.writeInt( ( Integer ) value );
+        }
+        else if ( value instanceof Long )
+        {
+            out.writeByte( LONG );
+            out.writeLong( ( Long ) value );
+        }
+        else if ( value instanceof Double )
+        {
+            out.writeByte( DOUBLE );
+            out.writeDouble( ( Double ) value );
+        }
+        else if ( value instanceof BigInteger )
+        {
+            out.writeByte( BIG_INTEGER );
+            writeIndex( out, value.toString(), strings );
+        }
+        else if ( value instanceof BigDecimal )
+        {
+            out.writeByte( BIG_DECIMAL );
+            writeIndex( out, value.toString(), strings );
+        }
+        else if ( value instanceof LocalDate )
+        {
+            out.writeByte( DATE );
+            writeIndex( out, value.toString(), strings );
+        }
+        else if ( value instanceof LocalDateTime )
+        {
+            out.writeByte( DATETIME );
+            writeIndex( out, value.toString(), strings );
+        }
+        else if ( value instanceof Duration )
+        {
+            out.writeByte( DURATION );
+            out.writeLong( ( ( Duration ) value ).getSeconds() );
+            out.writeInt( ( ( Duration ) value ).getNano() );
+        }
+        else if ( value instanceof Model )
+        {
+            out.writeByte( MODEL );
+            writeItem( out, ( Model ) value, strings );
+        }
+        else if ( value instanceof Map )
+        {
+            final Map< ?, ? > map = ( Map< ?, ? > ) value;
+            out.writeByte( MAP );
+            out.writeInt( map.size() );
+            for ( Map.Entry< ?, ? > entry : map.entrySet() )
+            {
+                writeIndex( out, String.valueOf( entry.getKey() ), strings );
+                writeValue( out, model, key, entry.getValue(), strings );
+            }
+        }
+        else if ( value instanceof List )
+        {
+            final List< ? > list = ( List< ? > ) value;
+            out.writeByte( LIST );
+            out.writeInt( list.size() );
+            for ( Object item : list )
+            {
+                writeValue( out, model, key, item, strings );
+            }
+        }
+        else
+        {
+            throw new UnsupportedValueException( format( "Snapshot does not support value at path: %s, key: %s, class: %s",
+                    model.path(),
+                    key,
+                    value.getClass().getName() ) );
+        }
+    }
+
+    private static Object readValue( DataInputStream in, Model model, String key, String[] strings ) throws IOException
+    {
+        final byte tag = in.readByte();
+        switch ( tag )
+        {
+            case NULL:
+                return null;
+            case STRING:
+                return strings[ in.readInt() ];
+            case BOOLEAN:
+                return in.readBoolean();
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case BIG_INTEGER:
+                return new BigInteger( strings[ in.readInt() ] );
+            case BIG_DECIMAL:
+                return new BigDecimal( strings[ in.readInt() ] );
+            case DATE:
+                return LocalDate.parse( strings[ in.readInt() ] );
+            case DATETIME:
+                return LocalDateTime.parse( strings[ in.readInt() ] );
+            case DURATION:
+                return Duration.ofSeconds( in.readLong(), in.readInt() );
+            case MODEL:
+                final Model child = model.newItem();
+                child.setParent( model );
+                readItem( in, child, strings );
+                return child;
+            case MAP:
+                final int mapSize = readCount( in );
+                final Map< String, Object > map = new LinkedHashMap<>();
+                for ( int i = 0; i < mapSize; i++ )
+                {
+                    final String mapKey = strings[ in.readInt() ];
+                    map.put( mapKey, readValue( in, model, key, strings ) );
+                }
+                return map;
+            case LIST:
+                final int listSize = readCount( in );
+                final List< Object > list = new ArrayList<>( listSize );
+                for ( int i = 0; i < listSize; i++ )
+                {
+                    list.add( readValue( in, model, key, strings ) );
+                }
+                return list;
+            default:
+                throw new ModelException( format( "Snapshot has unknown value tag: %s at path: %s, key: %s", tag, model.path(), key ) );
+        }
+    }
+
+    /**
+     * Raised while writing a value that a snapshot does not support.
+     */
+    private static final class UnsupportedValueException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private UnsupportedValueException( String message )
+        {
+            super( message );
+        }
+    }
+}
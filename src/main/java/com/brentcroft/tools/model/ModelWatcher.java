@@ -0,0 +1,219 @@
+package com.brentcroft.tools.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Watches the files included into a Model tree,
+ * and reloads each changed file into the items it was included into (see <code>AbstractModelItem.watchIncludes()</code>).
+ * <p>
+ * Only the entries a file contributed to an item are replaced,
+ * by entries materialized afresh from the file, and swapped in together.
+ * Each reload fires a <code>RELOAD</code> event (or an <code>EXCEPTION</code> event if it fails,
+ * leaving the previous entries in place), and is timed in the metrics of the root, if any.
+ * <p>
+ * Reloads happen on the watcher thread, so the tree should be made of
+ * {@link AbstractConcurrentModelItem}s if it is read by other threads meanwhile.
+ * Reloads are serialized, so a file can also be reloaded directly (see {@link #reload(File)}) while it is being watched.
+ * <p>
+ * Any failure of the watcher thread is fired as an <code>EXCEPTION</code> event, and the thread carries on watching.
+ * <p>
+ * Finding the watched files does not load any deferred includes (see <code>AbstractModelItem.isLazyIncludes()</code>),
+ * so the directories of files included later are only watched from the next reload.
+ */
+public class ModelWatcher implements AutoCloseable
+{
+    /**
+     * How long to wait after a change, for the writer to finish and to gather any further changes.
+     */
+    private static final long SETTLE_MILLIS = 50;
+
+    private final AbstractModelItem root;
+    private final WatchService watchService;
+    private final Set< Path > directories = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public ModelWatcher( AbstractModelItem root )
+    {
+        this.root = root;
+        try
+        {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( "Failed to create watch service", e );
+        }
+        registerDirectories();
+
+        thread = new Thread( this::watchLoop, "model-watcher" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    private List< IncludeRecord > includeRecords()
+    {
+        final List< IncludeRecord > records = new ArrayList<>();
+        root.collectIncludeRecords( records );
+        return records;
+    }
+
+    /**
+     * The files currently included into the tree.
+     *
+     * @return the included files
+     */
+    public Set< File > getWatchedFiles()
+    {
+        return includeRecords()
+                .stream()
+                .map( IncludeRecord::getFile )
+                .collect( Collectors.toCollection( LinkedHashSet::new ) );
+    }
+
+    private void registerDirectories()
+    {
+        for ( File file : getWatchedFiles() )
+        {
+            final Path directory = file.getParentFile().toPath();
+            if ( directories.add( directory ) )
+            {
+                try
+                {
+                    directory.register( watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE );
+                }
+                catch ( IOException e )
+                {
+                    directories.remove( directory );
+                    throw new ModelException( format( "Failed to watch directory: %s", directory ), e );
+                }
+            }
+        }
+    }
+
+    private void watchLoop()
+    {
+        while ( ! closed )
+        {
+            final Set< File > changed = new LinkedHashSet<>();
+            try
+            {
+                collectChanges( watchService.take(), changed );
+                Thread.sleep( SETTLE_MILLIS );
+                for ( WatchKey key = watchService.poll(); key != null; key = watchService.poll() )
+                {
+                    collectChanges( key, changed );
+                }
+            }
+            catch ( InterruptedException | ClosedWatchServiceException e )
+            {
+                return;
+            }
+            changed.forEach( this::reloadQuietly );
+        }
+    }
+
+    /**
+     * Reloads a changed file, reporting any failure as an event, so the watcher thread carries on.
+     */
+    private void reloadQuietly( File file )
+    {
+        try
+        {
+            reload( file );
+        }
+        catch ( RuntimeException e )
+        {
+            root.fireModelEvent(
+                    ModelEvent.EventType.EXCEPTION,
+                    () -> format( "Failed to reload: %s", file ),
+                    e );
+        }
+    }
+
+    private static void collectChanges( WatchKey key, Set< File > changed )
+    {
+        final Path directory = ( Path ) key.watchable();
+        for ( WatchEvent< ? > event : key.pollEvents() )
+        {
+            if ( event.kind() != StandardWatchEventKinds.OVERFLOW )
+            {
+                changed.add( directory.resolve( ( Path ) event.context() ).toAbsolutePath().normalize().toFile() );
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Reloads the file into every item it is included into,
+     * and then watches any new files included by the reloaded entries.
+     *
+     * @param file a changed file
+     * @return true if the file is included into the tree and was reloaded
+     */
+    public synchronized boolean reload( File file )
+    {
+        final File changed = file.toPath().toAbsolutePath().normalize().toFile();
+        final List< IncludeRecord > records = includeRecords()
+                .stream()
+                .filter( record -> record.getFile().equals( changed ) )
+                .collect( Collectors.toList() );
+        if ( records.isEmpty() )
+        {
+            return false;
+        }
+
+        final long started = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            records.forEach( record -> record.getTarget().reloadInclude( record ) );
+            ok = true;
+            root.fireModelEvent(
+                    ModelEvent.EventType.RELOAD,
+                    () -> format( "Reloaded: %s (%s items)", changed, records.size() ) );
+        }
+        catch ( RuntimeException e )
+        {
+            root.fireModelEvent(
+                    ModelEvent.EventType.EXCEPTION,
+                    () -> format( "Failed to reload: %s", changed ),
+                    e );
+        }
+        finally
+        {
+            final ModelMetrics metrics = root.getMetrics();
+            if ( metrics != null )
+            {
+                metrics.recordReload( changed.getPath(), System.nanoTime() - started, ok );
+            }
+        }
+        registerDirectories();
+        return ok;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        try
+        {
+            watchService.close();
+        }
+        catch ( IOException e )
+        {
+            throw new ModelException( "Failed to close watch service", e );
+        }
+        finally
+        {
+            thread.interrupt();
+        }
+    }
+}
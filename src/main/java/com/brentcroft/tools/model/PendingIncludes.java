@@ -0,0 +1,127 @@
+package com.brentcroft.tools.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * The deferred includes of an item (see <code>AbstractModelItem.isLazyIncludes()</code>),
+ * loaded by the first thread to access the item, while any other thread accessing the item waits.
+ * <p>
+ * No monitor is held while the includes load, since loading may read other items,
+ * some of which may themselves be pending.
+ * Instead, a thread that would wait for a load that is itself (directly or indirectly) waiting for that thread
+ * passes straight through, as a nested access on the loading thread does, rather than deadlock.
+ * <p>
+ * If loading fails, the failure is kept, and raised again on every later access to the item,
+ * rather than leaving the item half loaded without any error.
+ */
+final class PendingIncludes
+{
+    /**
+     * Guards the state of every pending load, and the loads each thread is waiting for.
+     * <p>
+     * It is only ever held briefly, and never while includes are loading.
+     */
+    private static final Object LOCK = new Object();
+
+    private static final Map< Thread, PendingIncludes > WAITING = new HashMap<>();
+
+    private final Runnable loader;
+
+    private Thread owner;
+    private boolean loaded;
+    private RuntimeException failure;
+
+    PendingIncludes( Runnable loader )
+    {
+        this.loader = loader;
+    }
+
+    /**
+     * Loads the includes on the calling thread, unless they are loaded,
+     * or waits while another thread loads them.
+     *
+     * @param item the item whose includes these are
+     * @return true once the includes are loaded, or false if passing through a load that is under way
+     */
+    boolean resolve( AbstractModelItem item )
+    {
+        final Thread current = Thread.currentThread();
+        synchronized ( LOCK )
+        {
+            while ( true )
+            {
+                if ( failure != null )
+                {
+                    throw new ModelException( format( "Failed to load includes at path: %s", item.path() ), failure );
+                }
+                if ( loaded )
+                {
+                    return true;
+                }
+                if ( owner == null )
+                {
+                    owner = current;
+                    break;
+                }
+                if ( waitsFor( current ) )
+                {
+                    return false;
+                }
+                WAITING.put( current, this );
+                try
+                {
+                    LOCK.wait();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new ModelException( format( "Interrupted waiting for includes at path: %s", item.path() ), e );
+                }
+                finally
+                {
+                    WAITING.remove( current );
+                }
+            }
+        }
+
+        RuntimeException raised = null;
+        try
+        {
+            loader.run();
+        }
+        catch ( RuntimeException e )
+        {
+            raised = e;
+        }
+        synchronized ( LOCK )
+        {
+            owner = null;
+            loaded = raised == null;
+            failure = raised;
+            LOCK.notifyAll();
+        }
+        if ( raised != null )
+        {
+            throw raised;
+        }
+        return true;
+    }
+
+    /**
+     * True if the owner of this load is, directly or indirectly, waiting for a load owned by the thread.
+     */
+    private boolean waitsFor( Thread thread )
+    {
+        for ( PendingIncludes load = this; load != null && load.owner != null; load = WAITING.get( load.owner ) )
+        {
+            if ( load.owner == thread )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,169 @@
+package com.brentcroft.tools.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Collects properties into a trie of their dotted keys, and then overwrites the entries of an item,
+ * navigating each shared key prefix only once (see <code>AbstractModelItem.overwritePropertiesFromFile()</code>).
+ * <p>
+ * Properties are taken straight into the trie as they are put,
+ * so <code>load( inputStream )</code> streams a file into the trie without building a table of its properties,
+ * and nothing can be read back out of this as Properties.
+ * <code>putAll( map )</code> also puts each entry in turn,
+ * since <code>Properties.putAll</code> does not call <code>put</code> (on Java 9+).
+ * <p>
+ * Keys are split on periods, ignoring any whitespace around them.
+ * Each key is navigated through the child Maps of the item without expanding any values,
+ * and the rest of the key, from the first segment that is not a Map, is put into the last Map reached.
+ * A key leading exactly to an existing Map is ignored.
+ * <p>
+ * Values are trimmed, and truncated at any <code>{0}</code> place holder.
+ */
+final class PropertiesTrie extends Properties
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String PLACE_HOLDER = "{0}";
+
+    private final Node root = new Node();
+
+    private static final class Node
+    {
+        private String value;
+        private Map< String, Node > children;
+
+        private Node child( String segment )
+        {
+            if ( children == null )
+            {
+                children = new LinkedHashMap<>();
+            }
+            return children.computeIfAbsent( segment, s -> new Node() );
+        }
+    }
+
+    @Override
+    public synchronized Object put( Object key, Object value )
+    {
+        final List< String > segments = split( key.toString().trim() );
+        if ( segments.isEmpty() )
+        {
+            return null;
+        }
+        Node node = root;
+        for ( String segment : segments )
+        {
+            node = node.child( segment );
+        }
+        node.value = uptoAnyPlaceHolder( value.toString().trim() );
+        return null;
+    }
+
+    @Override
+    public synchronized void putAll( Map< ?, ? > properties )
+    {
+        properties.forEach( this::put );
+    }
+
+    /**
+     * Overwrites the entries of the target with every collected property.
+     *
+     * @param target the item to overwrite
+     */
+    synchronized void overwrite( Map< String, Object > target )
+    {
+        overwrite( target, root );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static void overwrite( Map< String, Object > target, Node node )
+    {
+        if ( node.children == null )
+        {
+            return;
+        }
+        node.children.forEach( ( segment, child ) -> {
+            final Object current = getRaw( target, segment );
+            if ( current instanceof Map )
+            {
+                overwrite( ( Map< String, Object > ) current, child );
+            }
+            else
+            {
+                putAll( target, new StringBuilder( segment ), child );
+            }
+        } );
+    }
+
+    /**
+     * Puts the value of the node and of each of its descendants into the target,
+     * each keyed by its path from the node.
+     */
+    private static void putAll( Map< String, Object > target, StringBuilder key, Node node )
+    {
+        if ( node.value != null )
+        {
+            target.put( key.toString(), node.value );
+        }
+        if ( node.children == null )
+        {
+            return;
+        }
+        final int length = key.length();
+        node.children.forEach( ( segment, child ) -> {
+            key.append( '.' ).append( segment );
+            putAll( target, key, child );
+            key.setLength( length );
+        } );
+    }
+
+    private static Object getRaw( Map< String, Object > target, String key )
+    {
+        return target instanceof AbstractModelItem
+               ? ( ( AbstractModelItem ) target ).getRaw( key )
+               : target.get( key );
+    }
+
+    /**
+     * Splits a key on periods, trimming each segment,
+     * and dropping any trailing empty segments (as <code>String.split</code> does).
+     */
+    static List< String > split( String key )
+    {
+        final List< String > segments = new ArrayList<>();
+        int start = 0;
+        while ( true )
+        {
+            final int dot = key.indexOf( '.', start );
+            final int end = dot < 0 ? key.length() : dot;
+            segments.add( key.substring( start, end ).trim() );
+            if ( dot < 0 )
+            {
+                break;
+            }
+            start = dot + 1;
+        }
+        if ( key.isEmpty() )
+        {
+            return segments;
+        }
+        int size = segments.size();
+        while ( size > 0 && segments.get( size - 1 ).isEmpty() )
+        {
+            segments.remove( --size );
+        }
+        return segments;
+    }
+
+    private static String uptoAnyPlaceHolder( String value )
+    {
+        final int phi = value.indexOf( PLACE_HOLDER );
+        return phi > - 1
+               ? value.substring( 0, phi )
+               : value;
+    }
+}
@@ -0,0 +1,97 @@
+package com.brentcroft.tools.model;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared executor running asynchronous calls (see <code>Model.callAsync()</code>).
+ * <p>
+ * On a JVM supporting virtual threads (Java 21+) each task runs on its own virtual thread,
+ * so any number of blocking step scripts can run at once without an OS thread each.
+ * Otherwise tasks run on a cached pool of daemon threads.
+ * <p>
+ * The executor is found reflectively, so this still runs on Java 8.
+ * <p>
+ * Delays (see <code>Model.maybeDelayAsync()</code> and <code>Model.callDelayedAsync()</code>) are timed by a single daemon scheduler thread,
+ * which then hands the delayed continuation to the executor, so no thread is held while waiting.
+ * <p>
+ * Parallel includes (see <code>AbstractModelItem.isParallelIncludes()</code>) run on a dedicated ForkJoin pool,
+ * so included files, and any <code>$onload</code> steps they run, never occupy the common pool.
+ */
+final class StepExecutor
+{
+    private static final ExecutorService EXECUTOR = newExecutor();
+
+    private StepExecutor()
+    {
+    }
+
+    static ExecutorService get()
+    {
+        return EXECUTOR;
+    }
+
+    static ScheduledExecutorService scheduler()
+    {
+        return Scheduler.SCHEDULER;
+    }
+
+    static ForkJoinPool includes()
+    {
+        return Includes.POOL;
+    }
+
+    /**
+     * Holds the scheduler, so its thread is only started when first needed.
+     */
+    private static final class Scheduler
+    {
+        private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            final Thread thread = new Thread( runnable, "model-delay-scheduler" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Holds the include pool, so its threads are only started when first needed.
+     */
+    private static final class Includes
+    {
+        private static final ForkJoinPool POOL = new ForkJoinPool(
+                Runtime.getRuntime().availableProcessors(),
+                pool -> {
+                    final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+                    thread.setName( "model-include-" + thread.getPoolIndex() );
+                    thread.setDaemon( true );
+                    return thread;
+                },
+                null,
+                false );
+    }
+
+    private static ExecutorService newExecutor()
+    {
+        try
+        {
+            return ( ExecutorService ) Executors.class
+                    .getMethod( "newVirtualThreadPerTaskExecutor" )
+                    .invoke( null );
+        }
+        catch ( ReflectiveOperationException | RuntimeException e )
+        {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            final ThreadFactory threadFactory = runnable -> {
+                final Thread thread = new Thread( runnable, "model-step-" + threadNumber.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            };
+            return Executors.newCachedThreadPool( threadFactory );
+        }
+    }
+}
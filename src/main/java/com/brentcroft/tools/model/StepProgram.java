@@ -0,0 +1,103 @@
+package com.brentcroft.tools.model;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The steps of a steps text, parsed once:
+ * comment lines are stripped, remaining lines are joined,
+ * and the result is split into steps on semicolons.
+ * <p>
+ * Programs are cached by text so repeated calls of the same steps
+ * (e.g. via <code>Model.call( key )</code>) cost no parsing.
+ */
+@Getter
+public class StepProgram
+{
+    private static final int MAX_CACHED_PROGRAMS = 1024;
+    private static final Pattern LINE_SEPARATOR = Pattern.compile( "\\s*[\\n\\r]+\\s*" );
+    private static final Pattern STEP_SEPARATOR = Pattern.compile( "\\s*[;]+\\s*" );
+
+    private static final Map< String, StepProgram > PROGRAMS = Collections.synchronizedMap( new LruCache<>( MAX_CACHED_PROGRAMS ) );
+
+    private final List< String > steps;
+    private final String text;
+
+    private StepProgram( List< String > steps )
+    {
+        this.steps = Collections.unmodifiableList( steps );
+        this.text = String.join( ";\n", steps );
+    }
+
+    /**
+     * Obtain the (possibly cached) program for some steps text.
+     * <p>
+     * A newly parsed program is cached under both the supplied text
+     * and its own normalised text.
+     *
+     * @param value the steps text
+     * @return the program
+     */
+    public static StepProgram of( String value )
+    {
+        StepProgram program = PROGRAMS.get( value );
+        if ( program == null )
+        {
+            program = parse( value );
+            PROGRAMS.put( value, program );
+            PROGRAMS.putIfAbsent( program.getText(), program );
+        }
+        return program;
+    }
+
+    /**
+     * Parse some steps text without consulting the cache.
+     *
+     * @param value the steps text
+     * @return a new program
+     */
+    public static StepProgram parse( String value )
+    {
+        String uncommented = Stream
+                .of( LINE_SEPARATOR.split( value ) )
+                .filter( v -> ! v.isEmpty() && ! v.startsWith( "#" ) )
+                .map( String::trim )
+                .collect( Collectors.joining( " " ) );
+        return new StepProgram( Stream
+                .of( STEP_SEPARATOR.split( uncommented ) )
+                .collect( Collectors.toList() ) );
+    }
+
+    /**
+     * Compile each step, so that any invalid EL is reported now
+     * rather than when the steps are first run.
+     *
+     * @param compiler the compiler to apply to each step
+     * @return this
+     */
+    public StepProgram compile( Model.ELCompiler compiler )
+    {
+        steps
+                .stream()
+                .filter( step -> ! step.isEmpty() )
+                .forEach( compiler::apply );
+        return this;
+    }
+
+    public Stream< String > stream()
+    {
+        return steps.stream();
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+}
@@ -0,0 +1,44 @@
+package com.brentcroft.tools.model;
+
+import com.brentcroft.tools.el.MapBindings;
+import com.brentcroft.tools.el.Parented;
+
+import java.util.Map;
+
+public class ConcurrentModelItem extends AbstractConcurrentModelItem implements Parented
+{
+    // shares the EL set up by ModelItem
+    private static final Model EL = new ModelItem();
+
+    @Override
+    public Class< ? extends Model > getModelClass()
+    {
+        return ConcurrentModelItem.class;
+    }
+
+    public Map< String, Object > newContainer()
+    {
+        MapBindings bindings = new MapBindings( this );
+        bindings.put( "$self", this );
+        bindings.put( "$parent", getParent() );
+        return bindings;
+    }
+
+    @Override
+    public Expander getExpander()
+    {
+        return EL.getExpander();
+    }
+
+    @Override
+    public Evaluator getEvaluator()
+    {
+        return EL.getEvaluator();
+    }
+
+    @Override
+    public ELCompiler getELCompiler()
+    {
+        return EL.getELCompiler();
+    }
+}
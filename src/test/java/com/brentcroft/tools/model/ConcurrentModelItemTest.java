@@ -0,0 +1,204 @@
+package com.brentcroft.tools.model;
+
+import com.brentcroft.tools.el.SimpleELContextFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.String.format;
+import static org.junit.Assert.*;
+
+public class ConcurrentModelItemTest
+{
+    private final Model item = new ConcurrentModelItem();
+
+    @Before
+    public void setCurrentDirectory()
+    {
+        item.setCurrentDirectory( Paths.get( "src/test/resources" ) );
+        SimpleELContextFactory.clean();
+    }
+
+    @Test
+    public void createsConcurrentChildItems()
+    {
+        item.appendFromJson( "{ '$json': 'nested-01.json' }" );
+        assertTrue( item.getItem( "days.wednesday" ) instanceof AbstractConcurrentModelItem );
+        assertEquals( "plastic", item.eval( "days.wednesday.rubbish[2]" ) );
+    }
+
+    @Test
+    public void sharesItemBetweenThreads() throws Exception
+    {
+        item.appendFromJson( "{ 'people': { 'green': { 'hue': 777 } }, 'greeting': 'hello ${ name }', 'name': 'world' }" );
+        final int threads = 8;
+        final int puts = 500;
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            List< Future< ? > > futures = IntStream
+                    .range( 0, threads )
+                    .mapToObj( t -> executor.submit( () -> {
+                        for ( int i = 0; i < puts; i++ )
+                        {
+                            item.put( format( "t%d-%d", t, i ), i );
+                            assertEquals( "hello world", item.get( "greeting" ) );
+                            assertEquals( 777, item.getItem( "people.green" ).get( "hue" ) );
+                            assertTrue( item.keySet().contains( "people" ) );
+                        }
+                    } ) )
+                    .collect( Collectors.toList() );
+            for ( Future< ? > future : futures )
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        // $currentDirectory, people, greeting, name
+        assertEquals( 4 + threads * puts, item.size() );
+    }
+
+    @Test
+    public void memoizesExpansionsBetweenThreads() throws Exception
+    {
+        item.appendFromJson( "{ '$memoizeExpansions': true, 'greeting': 'hello ${ name }', 'name': 'world' }" );
+        final int readers = 4;
+        final int writes = 2000;
+        final AtomicBoolean writing = new AtomicBoolean( true );
+
+        ExecutorService executor = Executors.newFixedThreadPool( readers );
+        try
+        {
+            List< Future< ? > > futures = IntStream
+                    .range( 0, readers )
+                    .mapToObj( t -> executor.submit( () -> {
+                        while ( writing.get() )
+                        {
+                            assertTrue( item.get( "greeting" ).toString().startsWith( "hello " ) );
+                        }
+                    } ) )
+                    .collect( Collectors.toList() );
+            try
+            {
+                for ( int i = 0; i < writes; i++ )
+                {
+                    item.set( "name", "n" + i );
+                    assertEquals( "hello n" + i, item.get( "greeting" ) );
+                }
+            }
+            finally
+            {
+                writing.set( false );
+            }
+            for ( Future< ? > future : futures )
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test( timeout = 10000 )
+    public void putsItemsIntoEachOtherAtOnce() throws Exception
+    {
+        final Model other = new ConcurrentModelItem();
+        item.appendFromJson( "{ 'a': 1 }" );
+        other.appendFromJson( "{ 'b': 2 }" );
+        final int puts = 2000;
+
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Future< ? > ab = executor.submit( () -> IntStream.range( 0, puts ).forEach( i -> item.putAll( other ) ) );
+            Future< ? > ba = executor.submit( () -> IntStream.range( 0, puts ).forEach( i -> other.filteredPutAll( item ) ) );
+            ab.get();
+            ba.get();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertEquals( 2, item.get( "b" ) );
+        assertEquals( 1, other.get( "a" ) );
+    }
+
+    @Test
+    public void viewsWriteThroughToItem()
+    {
+        item.appendFromJson( "{ 'a': 1, 'b': 2, 'c': 3 }" );
+
+        assertTrue( item.keySet().contains( "b" ) );
+        assertTrue( item.values().contains( 3 ) );
+
+        item.entrySet()
+                .stream()
+                .filter( entry -> entry.getKey().equals( "a" ) )
+                .forEach( entry -> entry.setValue( 10 ) );
+        assertEquals( 10, item.get( "a" ) );
+
+        assertTrue( item.keySet().remove( "b" ) );
+        assertFalse( item.containsKey( "b" ) );
+        assertEquals( item.size(), item.keySet().size() );
+    }
+
+    @Test( timeout = 10000 )
+    public void writesForkChildWhileParentForkChanges() throws Exception
+    {
+        item.appendFromJson( "{ 'child': { 'a': 1 } }" );
+        final Model fork = item.fork();
+        final Model child = ( Model ) fork.get( "child" );
+        final int writes = 2000;
+
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Future< ? > parent = executor.submit( () -> IntStream.range( 0, writes ).forEach( i -> {
+                child.getCurrentDirectory();
+                fork.put( AbstractModelItem.CURRENT_DIRECTORY, "src/test/resources" );
+            } ) );
+            Future< ? > children = executor.submit( () -> IntStream.range( 0, writes ).forEach( i -> child.put( "a", i ) ) );
+            parent.get();
+            children.get();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertSame( child, fork.get( "child" ) );
+        assertEquals( writes - 1, child.get( "a" ) );
+        assertEquals( 1, item.getItem( "child" ).get( "a" ) );
+    }
+
+    @Test
+    public void iteratesWhileKeysChange()
+    {
+        item.appendFromJson( "{ 'a': 1, 'b': 2, 'c': 3 }" );
+
+        final List< String > keys = new ArrayList<>();
+        item.forEach( ( key, value ) -> {
+            keys.add( key );
+            item.remove( "c" );
+            item.put( "d", 4 );
+        } );
+
+        assertEquals( Arrays.asList( "$currentDirectory", "a", "b" ), keys );
+        assertEquals( Arrays.asList( "$currentDirectory", "a", "b", "d" ), new ArrayList<>( item.keySet() ) );
+    }
+}
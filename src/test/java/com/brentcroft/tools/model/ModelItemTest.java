@@ -1,5 +1,6 @@
 package com.brentcroft.tools.model;
 
+import com.brentcroft.tools.el.Parented;
 import com.brentcroft.tools.el.SimpleELContextFactory;
 import com.brentcroft.tools.materializer.TagValidationException;
 import org.junit.Before;
@@ -8,12 +9,21 @@ import org.xml.sax.InputSource;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.StringWriter;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -28,6 +38,58 @@ public class ModelItemTest
         SimpleELContextFactory.clean();
     }
 
+    @Test
+    public void streamsJsonRawOrExpanded()
+    {
+        item.appendFromJson( "{ 'name': 'world', 'greeting': 'hello ${ name }', 'people': { 'green': { 'hue': 777 } } }" );
+
+        StringWriter raw = new StringWriter();
+        item.toJson( raw, false );
+        assertEquals( item.toJson(), raw.toString() );
+
+        StringWriter expanded = new StringWriter();
+        item.toJson( expanded, true );
+        assertTrue( expanded.toString().contains( "\"hello world\"" ) );
+        assertTrue( expanded.toString().contains( "\"hue\" : 777" ) );
+        assertEquals( "hello world", ModelItem.stringify( item.get( "greeting" ) ).replace( "\"", "" ) );
+    }
+
+    @Test
+    public void memoizesExpansionsUntilDependencyChanges()
+    {
+        item.appendFromJson( "{ '$memoizeExpansions': true, 'name': 'world', 'greeting': 'hello ${ name }', 'people': { 'green': { 'hue': 777 } }, 'hue': 'hue ${ people.green.hue }' }" );
+        ModelMetrics metrics = new ModelMetrics();
+        ( ( AbstractModelItem ) item ).setMetrics( metrics );
+
+        assertEquals( "hello world", item.get( "greeting" ) );
+        assertEquals( "hue 777", item.get( "hue" ) );
+        long expansions = metrics.getExpansionCount();
+
+        assertEquals( "hello world", item.get( "greeting" ) );
+        assertEquals( "hue 777", item.get( "hue" ) );
+        assertEquals( expansions, metrics.getExpansionCount() );
+
+        item.set( "name", "there" );
+        assertEquals( "hello there", item.get( "greeting" ) );
+
+        item.getItem( "people.green" ).set( "hue", 888 );
+        assertEquals( "hue 888", item.get( "hue" ) );
+    }
+
+    @Test
+    public void evaluatesAndExpandsInBatches()
+    {
+        item.appendFromJson( "{ 'name': 'world', 'people': { 'green': { 'hue': 777 } } }" );
+
+        assertEquals(
+                Arrays.asList( "hello world", "plain", "hue 777" ),
+                item.expandAll( Arrays.asList( "hello ${ name }", "plain", "hue ${ people.green.hue }" ) ) );
+
+        assertEquals(
+                Arrays.asList( "world", 777, 778L ),
+                item.evalAll( Arrays.asList( "name", "people.green.hue", "people.green.hue + 1" ) ) );
+    }
+
     @Test
     public void stringifiesRoundTripsItem()
     {
@@ -67,6 +129,387 @@ public class ModelItemTest
         assertEquals( "people.green.hue", item.getItem( "people.green.hue" ).path() );
     }
 
+    @Test
+    public void navigatesPlainPathsWithoutEvaluation()
+    {
+        item.appendFromJson( "{ 'people': { 'red': { 'hue': 123456 }, 'green': { 'hue': { 'x': 777 } } } }" );
+
+        Model hue = item.getItem( "people.green.hue" );
+        assertSame( hue, item.eval( "people.green.hue" ) );
+        assertSame( hue, item.getItem( "people['green'].hue" ) );
+        assertSame( hue, item.getItem( "$self.people.green.hue" ) );
+        assertSame( item.getItem( "people" ), item.getItem( "people.red" ).getParent() );
+    }
+
+    @Test
+    public void loadsIncludesLazily()
+    {
+        item.appendFromJson( "{ '$lazyIncludes': true, '$json': 'nested-01.json' }" );
+
+        AbstractModelItem days = ( AbstractModelItem ) item.get( "days" );
+        assertTrue( days.isIncludePending() );
+
+        AbstractModelItem wednesday = ( AbstractModelItem ) days.get( "wednesday" );
+        assertFalse( days.isIncludePending() );
+        assertTrue( wednesday.isIncludePending() );
+
+        assertEquals( "plastic", item.eval( "days.wednesday.rubbish[2]" ) );
+        assertFalse( wednesday.isIncludePending() );
+    }
+
+    @Test( timeout = 10000 )
+    public void loadsParallelIncludesLazily()
+    {
+        item.appendFromJson( "{ '$lazyIncludes': true, '$parallelIncludes': true, 'both': { '$json': 'days.json, nested-02.json' } }" );
+
+        AbstractModelItem both = ( AbstractModelItem ) item.get( "both" );
+        assertTrue( both.isIncludePending() );
+
+        assertEquals( 2, both.get( "level" ) );
+        assertTrue( both.containsKey( "wednesday" ) );
+        assertFalse( both.isIncludePending() );
+    }
+
+    @Test( expected = CircularityException.class )
+    public void circularityJsonLazily()
+    {
+        item.appendFromJson( "{ '$lazyIncludes': true, 'circular': { '$json': 'circularity.json' } }" );
+        item.getItem( "circular" ).keySet();
+    }
+
+    @Test
+    public void raisesLazyIncludeFailureOnEveryAccess()
+    {
+        item.appendFromJson( "{ '$lazyIncludes': true, 'circular': { '$json': 'circularity.json' } }" );
+        AbstractModelItem circular = ( AbstractModelItem ) item.get( "circular" );
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            try
+            {
+                circular.keySet();
+                fail( "expected exception" );
+            }
+            catch ( RuntimeException e )
+            {
+                assertTrue( circular.isIncludePending() );
+            }
+        }
+    }
+
+    @Test
+    public void watchesWithoutLoadingLazyIncludes()
+    {
+        item.appendFromJson( "{ '$lazyIncludes': true, '$json': 'nested-01.json' }" );
+        AbstractModelItem days = ( AbstractModelItem ) item.get( "days" );
+
+        try ( ModelWatcher watcher = ( ( AbstractModelItem ) item ).watchIncludes() )
+        {
+            assertTrue( watcher.getWatchedFiles().stream().anyMatch( file -> file.getName().equals( "nested-01.json" ) ) );
+            assertTrue( days.isIncludePending() );
+        }
+    }
+
+    @Test
+    public void roundTripsSnapshot() throws Exception
+    {
+        item.appendFromJson( "{ '$json': 'nested-01.json' }" );
+        item.put( "duration", Duration.ofMillis( 1500 ) );
+
+        Path snapshot = Files.createTempFile( "model", ".snapshot" );
+        snapshot.toFile().deleteOnExit();
+        item.writeSnapshot( snapshot );
+
+        Model restored = new ModelItem();
+        restored.setName( "restored" );
+        assertTrue( restored.readSnapshot( snapshot ) );
+        assertEquals( "restored", restored.getName() );
+        assertEquals( item.toJson(), restored.toJson() );
+        assertEquals( Duration.ofMillis( 1500 ), restored.get( "duration" ) );
+        assertEquals( "days.wednesday", restored.getItem( "days.wednesday" ).path() );
+        assertEquals(
+                ( ( AbstractModelItem ) item ).getSourceFiles(),
+                ( ( AbstractModelItem ) restored ).getSourceFiles() );
+
+        // the include records are restored too, so the restored tree can be watched
+        try ( ModelWatcher watcher = ( ( AbstractModelItem ) restored ).watchIncludes() )
+        {
+            assertEquals( new HashSet<>( ( ( AbstractModelItem ) item ).getSourceFiles() ), watcher.getWatchedFiles() );
+        }
+    }
+
+    @Test
+    public void readsCorruptSnapshotAsMiss() throws Exception
+    {
+        item.appendFromJson( "{ '$json': 'nested-01.json' }" );
+
+        Path directory = Files.createTempDirectory( "snapshots" );
+        directory.toFile().deleteOnExit();
+        Path snapshot = directory.resolve( "model.snapshot" );
+        snapshot.toFile().deleteOnExit();
+        item.writeSnapshot( snapshot );
+        assertEquals( Collections.singletonList( snapshot.toFile() ), Arrays.asList( directory.toFile().listFiles() ) );
+
+        byte[] bytes = Files.readAllBytes( snapshot );
+        Files.write( snapshot, Arrays.copyOf( bytes, bytes.length / 2 ) );
+
+        Model restored = new ModelItem();
+        assertFalse( restored.readSnapshot( snapshot ) );
+        assertTrue( restored.isEmpty() );
+
+        Arrays.fill( bytes, 8, bytes.length, ( byte ) 0x7F );
+        Files.write( snapshot, bytes );
+        assertFalse( restored.readSnapshot( snapshot ) );
+        assertTrue( restored.isEmpty() );
+    }
+
+    @Test
+    public void snapshotSkipsUnsupportedValues() throws Exception
+    {
+        item.put( "x", 1 );
+        Path snapshot = Files.createTempFile( "model", ".snapshot" );
+        snapshot.toFile().deleteOnExit();
+        assertTrue( item.writeSnapshot( snapshot ) );
+
+        item.put( "thread", Thread.currentThread() );
+        assertFalse( item.writeSnapshot( snapshot ) );
+        assertFalse( new ModelItem().readSnapshot( snapshot ) );
+    }
+
+    @Test
+    public void reloadsChangedIncludes() throws Exception
+    {
+        Path directory = Files.createTempDirectory( "includes" );
+        directory.toFile().deleteOnExit();
+        Path include = directory.resolve( "include.json" );
+        include.toFile().deleteOnExit();
+        Files.write( include, "{ 'x': 1, 'dropped': true, 'nested': { 'y': 1 } }".getBytes() );
+
+        item.setCurrentDirectory( directory );
+        item.appendFromJson( "{ 'own': 0, '$json': 'include.json' }" );
+        ModelMetrics metrics = new ModelMetrics();
+        ( ( AbstractModelItem ) item ).setMetrics( metrics );
+
+        List< ModelEvent > reloads = new CopyOnWriteArrayList<>();
+        List< ModelEvent > failures = new CopyOnWriteArrayList<>();
+        CountDownLatch reloaded = new CountDownLatch( 1 );
+        try ( ModelEventDispatcher dispatcher = new ModelEventDispatcher() )
+        {
+            dispatcher.subscribe( ModelEvent.EventType.RELOAD, event -> {
+                reloads.add( event );
+                reloaded.countDown();
+            } );
+            dispatcher.subscribe( ModelEvent.EventType.EXCEPTION, failures::add );
+            ( ( AbstractModelItem ) item ).setEventDispatcher( dispatcher );
+
+            try ( ModelWatcher watcher = ( ( AbstractModelItem ) item ).watchIncludes() )
+            {
+                assertEquals( Collections.singleton( include.toFile() ), watcher.getWatchedFiles() );
+
+                Files.write( include, "{ 'x': 2, 'nested': { 'y': 2 } }".getBytes() );
+                assertTrue( reloaded.await( 10, TimeUnit.SECONDS ) );
+            }
+            assertTrue( dispatcher.flush( 1000 ) );
+        }
+
+        assertEquals( Collections.emptyList(), failures );
+        assertEquals( 0, item.get( "own" ) );
+        assertEquals( 2, item.get( "x" ) );
+        assertEquals( 2, item.getItem( "nested" ).get( "y" ) );
+        assertFalse( item.containsKey( "dropped" ) );
+        assertEquals( Long.valueOf( reloads.size() ), metrics.getReloadCounts().get( include.toFile().getPath() ) );
+    }
+
+    @Test
+    public void buildsChildItemsFromJson()
+    {
+        item.appendFromJson( "{ 'people': { 'green': { 'hue': 777 } }, 'hues': [ { 'x': 1 }, 2 ] }" );
+
+        Model green = item.getItem( "people.green" );
+        assertEquals( "green", green.getName() );
+        assertEquals( item.getItem( "people" ), green.getParent() );
+        assertEquals( 777, green.get( "hue" ) );
+
+        List< ? > hues = ( List< ? > ) item.get( "hues" );
+        assertFalse( hues.get( 0 ) instanceof Model );
+        assertEquals( 2, hues.get( 1 ) );
+    }
+
+    @Test
+    public void recalculatesPathWhenMoved()
+    {
+        item.appendFromJson( "{ 'people': { 'green': { 'hue': { 'x': 777 } } }, 'others': {} }" );
+        Model hue = item.getItem( "people.green.hue" );
+        assertEquals( "people.green.hue", hue.path() );
+        assertEquals( item, hue.getRoot() );
+
+        Model green = item.getItem( "people.green" );
+        green.setName( "blue" );
+        item.getItem( "others" ).put( "blue", green );
+        assertEquals( "others.blue.hue", hue.path() );
+
+        Model newRoot = new ModelItem();
+        item.setName( "top" );
+        newRoot.put( "top", item );
+        assertEquals( "top.others.blue.hue", hue.path() );
+        assertEquals( newRoot, hue.getRoot() );
+    }
+
+    @Test
+    public void freezesModelTree()
+    {
+        item.appendFromJson( "{ 'name': 'world', 'greeting': 'hello ${ name }', 'people': { 'green': { 'hue': 777, 'tags': [ 'a', 'b' ] } } }" );
+        Model frozen = item.freeze();
+
+        assertTrue( frozen instanceof FrozenModel );
+        assertSame( frozen, frozen.freeze() );
+        assertEquals( new ArrayList<>( item.keySet() ), new ArrayList<>( frozen.keySet() ) );
+        assertEquals( "hello world", frozen.get( "greeting" ) );
+
+        Model green = frozen.getItem( "people.green" );
+        assertTrue( green instanceof FrozenModel );
+        assertEquals( "people.green", green.path() );
+        assertEquals( frozen, green.getRoot() );
+        assertEquals( 777, green.get( "hue" ) );
+        assertEquals( Arrays.asList( "a", "b" ), green.get( "tags" ) );
+
+        item.put( "name", "everyone" );
+        assertEquals( "hello world", frozen.get( "greeting" ) );
+    }
+
+    @Test
+    public void freezesSharedModelAtEachPlace()
+    {
+        item.appendFromJson( "{ 'a': { 'x': 1 }, 'b': { 'y': 2 } }" );
+        item.getItem( "b" ).put( "list", Collections.singletonList( item.getItem( "a" ) ) );
+        Model frozen = item.freeze();
+
+        Model a = frozen.getItem( "a" );
+        Model shared = ( Model ) ( ( List< ? > ) frozen.getItem( "b" ).get( "list" ) ).get( 0 );
+        assertNotSame( a, shared );
+        assertEquals( "a", a.path() );
+        assertEquals( "b.a", shared.path() );
+        assertSame( frozen, shared.getRoot() );
+        assertEquals( 1, shared.get( "x" ) );
+    }
+
+    @Test
+    public void runsFrozenStepsWithMetrics()
+    {
+        item.appendFromJson( "{ 'people': { 'level': 5, '$$next': 'level + 1' } }" );
+        ModelMetrics metrics = new ModelMetrics();
+        ( ( AbstractModelItem ) item ).setMetrics( metrics );
+
+        Model people = item.freeze().getItem( "people" );
+        assertEquals( 6L, people.call( "$$next" ) );
+        assertEquals( Long.valueOf( 1 ), metrics.getCallCounts().get( "people.$$next" ) );
+        assertEquals( Long.valueOf( 1 ), metrics.getStepCounts().get( "people.$$next[0]" ) );
+    }
+
+    @Test
+    public void evaluatesParentScopeWhenFrozen()
+    {
+        item.appendFromJson( "{ 'level': 3, 'people': { 'level': 5, 'green': { 'hue': 'hue ${ $parent.level }', '$$next': '$parent.$parent.level + 1' } } }" );
+        Model green = item.getItem( "people.green" );
+        Model frozenGreen = item.freeze().getItem( "people.green" );
+
+        assertTrue( frozenGreen instanceof Parented );
+        assertEquals( "hue 5", green.get( "hue" ) );
+        assertEquals( green.get( "hue" ), frozenGreen.get( "hue" ) );
+        assertEquals( green.eval( "$parent.$parent.level + 1" ), frozenGreen.eval( "$parent.$parent.level + 1" ) );
+        assertEquals( 4L, frozenGreen.call( "$$next" ) );
+    }
+
+    @Test( expected = UnsupportedOperationException.class )
+    public void frozenModelCannotBeChanged()
+    {
+        item.appendFromJson( "{ 'people': { 'green': { 'hue': 777 } } }" );
+        item.freeze().getItem( "people.green" ).put( "hue", 888 );
+    }
+
+    @Test
+    public void forksModelTree()
+    {
+        item.appendFromJson( "{ 'name': 'world', 'greeting': 'hello ${ name }', 'people': { 'green': { 'hue': 777 } } }" );
+        Model fork = item.fork();
+
+        assertEquals( "hello world", fork.get( "greeting" ) );
+        assertEquals( new ArrayList<>( item.keySet() ), new ArrayList<>( fork.keySet() ) );
+
+        fork.put( "name", "everyone" );
+        fork.getItem( "people.green" ).put( "hue", 888 );
+        fork.remove( "people" );
+        fork.put( "extra", true );
+
+        assertEquals( "hello everyone", fork.get( "greeting" ) );
+        assertFalse( fork.containsKey( "people" ) );
+        assertTrue( fork.containsKey( "extra" ) );
+
+        assertEquals( "hello world", item.get( "greeting" ) );
+        assertEquals( 777, item.getItem( "people.green" ).get( "hue" ) );
+        assertFalse( item.containsKey( "extra" ) );
+    }
+
+    @Test
+    public void readsForkWithoutStoringChildForks()
+    {
+        item.appendFromJson( "{ 'name': 'world', 'people': { 'green': { 'hue': 777 }, 'red': { 'hue': 123 } } }" );
+        AbstractModelItem fork = ( AbstractModelItem ) item.fork();
+
+        assertEquals( item.size(), fork.size() );
+        assertEquals( item.toJson(), fork.toJson() );
+        assertSame( fork.get( "people" ), fork.get( "people" ) );
+        assertTrue( fork.ownValues().isEmpty() );
+
+        fork.getItem( "people.green" ).put( "hue", 888 );
+
+        assertEquals( 1, fork.ownValues().size() );
+        assertEquals( 888, fork.getItem( "people.green" ).get( "hue" ) );
+        assertEquals( 123, fork.getItem( "people.red" ).get( "hue" ) );
+        assertEquals( 777, item.getItem( "people.green" ).get( "hue" ) );
+    }
+
+    @Test
+    public void writesThroughForkViews()
+    {
+        item.appendFromJson( "{ 'name': 'world', 'size': 1, 'people': { 'green': { 'hue': 777 } } }" );
+        Model fork = item.fork();
+
+        fork.entrySet().forEach( entry -> {
+            if ( entry.getKey().equals( "name" ) )
+            {
+                entry.setValue( "everyone" );
+            }
+        } );
+        fork.keySet().removeIf( "size"::equals );
+        fork.values().remove( fork.get( "people" ) );
+
+        assertEquals( "everyone", fork.get( "name" ) );
+        assertFalse( fork.containsKey( "size" ) );
+        assertFalse( fork.containsKey( "people" ) );
+
+        assertEquals( "world", item.get( "name" ) );
+        assertEquals( 1, item.get( "size" ) );
+        assertTrue( item.containsKey( "people" ) );
+    }
+
+    @Test
+    public void recalculatesCurrentDirectoryWhenChanged()
+    {
+        item.appendFromJson( "{ 'people': { 'green': { 'hue': 777 } } }" );
+        Model green = item.getItem( "people.green" );
+        assertEquals( Paths.get( "src/test/resources" ), green.getCurrentDirectory() );
+
+        item.setCurrentDirectory( Paths.get( "src/test/resources/sub01" ) );
+        assertEquals( Paths.get( "src/test/resources/sub01" ), green.getCurrentDirectory() );
+
+        item.getItem( "people" ).put( "$currentDirectory", "src/test/resources/models" );
+        assertEquals( Paths.get( "src/test/resources/models" ), green.getCurrentDirectory() );
+
+        new ModelItem().put( "green", green );
+        assertEquals( Paths.get( "." ), green.getCurrentDirectory() );
+    }
+
     @Test
     public void evaluatesRoot()
     {
@@ -107,6 +550,15 @@ public class ModelItemTest
         assertEquals( "green", item.get( "blue" ) );
     }
 
+    @Test
+    public void mergesEntriesInDeclarationOrder()
+    {
+        item.appendFromJson( "{ 'c': 1, 'b': null, 'a': 3, '$jsonText': 'reserved' }" );
+        assertEquals(
+                Arrays.asList( "$currentDirectory", "c", "b", "a" ),
+                new ArrayList<>( item.keySet() ) );
+    }
+
     @Test
     public void createsModelItemFromJsonFile()
     {
@@ -127,6 +579,23 @@ public class ModelItemTest
         assertEquals( 105, item.eval( "days.friday.getParent().wednesday.rubbish[4]" ) );
     }
 
+    @Test
+    public void loadsJsonFilesInParallel()
+    {
+        item.appendFromJson( "{ '$parallelIncludes': true, '$json': 'root-01.json, nested-01.json' }" );
+
+        assertEquals( "bloggs", item.get( "fred" ) );
+        assertEquals( 1, item.get( "level" ) );
+        assertEquals( "boot", item.getItem( "sub.less" ).get( "foot" ) );
+        assertEquals( "plastic", item.eval( "days.wednesday.rubbish[2]" ) );
+    }
+
+    @Test( expected = CircularityException.class )
+    public void circularityJsonInParallel()
+    {
+        item.appendFromJson( "{ '$parallelIncludes': true, '$json': 'root-01.json, circularity.json' }" );
+    }
+
     @Test
     public void overwritesModelItemFromPropertiesFile()
     {
@@ -134,6 +603,25 @@ public class ModelItemTest
         assertEquals( "boot", item.getItem( "less" ).get( "foot" ) );
     }
 
+    @Test
+    public void overwritesNestedItemsFromPropertiesFile() throws Exception
+    {
+        Path directory = Files.createTempDirectory( "properties" );
+        directory.toFile().deleteOnExit();
+        Path properties = directory.resolve( "nested.properties" );
+        properties.toFile().deleteOnExit();
+        Files.write( properties, "people.green.hue = 888\npeople . red.hue=999 {0} ignored\nlabels.title=Title\npeople=ignored\n".getBytes() );
+
+        item.setCurrentDirectory( directory );
+        item.appendFromJson( "{ 'people': { 'green': { 'hue': 777 }, 'red': { 'hue': '${ people.green.hue }' } }, '$properties': 'nested.properties' }" );
+
+        assertEquals( "888", item.getItem( "people.green" ).get( "hue" ) );
+        assertEquals( "999", item.getItem( "people.red" ).get( "hue" ) );
+        assertEquals( "Title", item.get( "labels.title" ) );
+        assertFalse( item.containsKey( "title" ) );
+        assertTrue( item.get( "people" ) instanceof Model );
+    }
+
     @Test
     public void overwritesModelItemFromPropertiesXmlFile()
     {
@@ -141,6 +629,27 @@ public class ModelItemTest
         assertEquals( "234", item.get( "amount" ) );
     }
 
+    @Test
+    public void overwritesNestedItemsFromPropertiesXmlFile() throws Exception
+    {
+        Path directory = Files.createTempDirectory( "properties" );
+        directory.toFile().deleteOnExit();
+        Path properties = directory.resolve( "nested-properties.xml" );
+        properties.toFile().deleteOnExit();
+        Files.write( properties, ( "<properties>"
+                + "<entry key='people.green.hue'>888</entry>"
+                + "<entry key='people.red.hue'>999</entry>"
+                + "<entry key='labels.title'>Title</entry>"
+                + "</properties>" ).getBytes() );
+
+        item.setCurrentDirectory( directory );
+        item.appendFromJson( "{ 'people': { 'green': { 'hue': 777 }, 'red': { 'hue': 555 } }, '$properties-xml': 'nested-properties.xml' }" );
+
+        assertEquals( "888", item.getItem( "people.green" ).get( "hue" ) );
+        assertEquals( "999", item.getItem( "people.red" ).get( "hue" ) );
+        assertEquals( "Title", item.get( "labels.title" ) );
+    }
+
 
     @Test
     public void materializesModelItemFromXmlFileReference()
@@ -219,6 +728,18 @@ public class ModelItemTest
         assertEquals( "red", item.expand( "${ inserted.fred.head }" ) );
     }
 
+    @Test
+    public void skipsExpansionOfPlainText()
+    {
+        String plainText = "no markers here";
+        item.put( "plain", plainText );
+
+        assertFalse( Model.isExpandable( plainText ) );
+        assertTrue( Model.isExpandable( "${ plain }" ) );
+        assertSame( plainText, item.get( "plain" ) );
+        assertSame( plainText, item.expand( plainText ) );
+    }
+
     @Test
     public void usesEvaluator()
     {
@@ -281,6 +802,144 @@ public class ModelItemTest
         assertEquals( 8L, item.get( "level" ) );
     }
 
+    @Test
+    public void callsStepsConcurrently()
+    {
+        item.appendFromJson( "{ 'base': 10, '$$double': 'base * 2', '$$triple': 'base * 3', '$$fail': 'no_such_thing.run()' }" );
+
+        assertEquals( 20L, item.callAsync( "$$double" ).join() );
+        assertEquals( Arrays.asList( 20L, 30L ), item.callAll( Arrays.asList( "$$double", "$$triple" ) ) );
+
+        try
+        {
+            item.callAll( Arrays.asList( "$$double", "$$fail" ) );
+            fail( "expected ModelException" );
+        }
+        catch ( ModelException e )
+        {
+            assertNotNull( e.getCause() );
+        }
+    }
+
+    @Test
+    public void delaysWithoutBlocking()
+    {
+        item.appendFromJson( "{ '$operationDelayMillis': 500, '$$run': '$self.level = 1' }" );
+        ModelMetrics metrics = new ModelMetrics();
+        ( ( AbstractModelItem ) item ).setMetrics( metrics );
+
+        long started = System.nanoTime();
+        CompletableFuture< Void > delayed = item.maybeDelayAsync();
+        CompletableFuture< Object > called = item.callDelayedAsync( "$$run" );
+
+        // the calling thread is not held for the delay
+        assertTrue( System.nanoTime() - started < 250_000_000L );
+        assertFalse( called.isDone() );
+        assertFalse( item.containsKey( "level" ) );
+
+        delayed.join();
+        called.join();
+        assertTrue( System.nanoTime() - started >= 500_000_000L );
+        assertEquals( 1L, item.get( "level" ) );
+
+        assertEquals( Long.valueOf( 2 ), metrics.getDelayCounts().get( "" ) );
+        assertTrue( metrics.getDelayStatistics( "" ).getTotalNanos() >= 1_000_000_000L );
+    }
+
+    @Test
+    public void recordsModelMetrics()
+    {
+        item
+                .appendFromJson( "{ 'level': 1, 'greeting': 'level ${ level }' }" )
+                .insertFromJson( "incrementer", "{ '$$run': '$parent.level = $parent.level + 1' }" );
+
+        ModelMetrics metrics = new ModelMetrics();
+        ( ( AbstractModelItem ) item ).setMetrics( metrics );
+        assertSame( metrics, item.getItem( "incrementer" ).getMetrics() );
+
+        item.getItem( "incrementer" ).call( "$$run" );
+        item.getItem( "incrementer" ).call( "$$run" );
+        assertEquals( "level 3", item.get( "greeting" ) );
+
+        assertEquals( Long.valueOf( 2 ), metrics.getCallCounts().get( "incrementer.$$run" ) );
+        assertEquals( Long.valueOf( 2 ), metrics.getStepCounts().get( "incrementer.$$run[0]" ) );
+        assertEquals( 1, metrics.getExpansionCount() );
+        assertEquals( 0, metrics.getExceptionCount() );
+
+        try
+        {
+            item.steps( "no_such_thing.run()" );
+            fail( "expected exception" );
+        }
+        catch ( RuntimeException e )
+        {
+            assertEquals( 1, metrics.getExceptionCount() );
+            assertEquals( Long.valueOf( 1 ), metrics.getStepExceptionCounts().get( "(inline)[0]" ) );
+        }
+    }
+
+    @Test
+    public void dispatchesModelEvents()
+    {
+        item.insertFromJson( "incrementer", "{ 'level': 1, '$$run': 'level = level + 1; level = level + 1' }" );
+
+        List< String > steps = new CopyOnWriteArrayList<>();
+        try ( ModelEventDispatcher dispatcher = new ModelEventDispatcher() )
+        {
+            dispatcher.subscribe( ModelEvent.EventType.STEP_START, event -> steps.add( event.getMessage().trim() ) );
+            ( ( AbstractModelItem ) item ).setEventDispatcher( dispatcher );
+
+            assertFalse( dispatcher.hasListeners( ModelEvent.EventType.STEPS_START ) );
+
+            item.getItem( "incrementer" ).call( "$$run" );
+
+            assertTrue( dispatcher.flush( 1000 ) );
+        }
+        assertEquals( Arrays.asList( "-> level = level + 1", "-> level = level + 1" ), steps );
+        assertEquals( 3L, item.getItem( "incrementer" ).get( "level" ) );
+    }
+
+    @Test
+    public void dispatchesInOrderWhenFull()
+    {
+        List< Integer > seen = new CopyOnWriteArrayList<>();
+        try ( ModelEventDispatcher dispatcher = new ModelEventDispatcher( 2 ) )
+        {
+            dispatcher.subscribe( ModelEvent.EventType.MESSAGE, event -> seen.add( Integer.valueOf( event.getMessage() ) ) );
+            dispatcher.subscribe( ModelEvent.EventType.RELOAD, event -> {
+                throw new IllegalStateException( "listener failed" );
+            } );
+
+            List< Integer > expected = new ArrayList<>();
+            for ( int i = 0; i < 100; i++ )
+            {
+                dispatcher.dispatch( ModelEvent.EventType.MESSAGE.newEvent( item, String.valueOf( i ) ) );
+                expected.add( i );
+            }
+            // reported through notifyModelEvent of the source, without stopping delivery
+            dispatcher.dispatch( ModelEvent.EventType.RELOAD.newEvent( item, "reload" ) );
+            dispatcher.dispatch( ModelEvent.EventType.MESSAGE.newEvent( item, "100" ) );
+            expected.add( 100 );
+
+            assertTrue( dispatcher.flush( 5000 ) );
+            assertEquals( expected, seen );
+        }
+    }
+
+    @Test
+    public void reusesParsedStepPrograms()
+    {
+        String steps = "# comment\n $self.level = 1;\n\n $self.level = level + 1; ";
+        StepProgram program = StepProgram.of( steps );
+
+        assertEquals( Arrays.asList( "$self.level = 1", "$self.level = level + 1" ), program.getSteps() );
+        assertSame( program, StepProgram.of( steps ) );
+        assertSame( program, StepProgram.of( program.getText() ) );
+
+        item.steps( steps );
+        assertEquals( 2L, item.get( "level" ) );
+    }
+
     @Test
     public void usesStaticScope()
     {
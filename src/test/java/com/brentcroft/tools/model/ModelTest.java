@@ -8,6 +8,7 @@ import org.xml.sax.InputSource;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
@@ -59,6 +60,68 @@ public class ModelTest
         assertEquals( "model-01", item.eval("$title") );
     }
 
+    @Test
+    public void loadsModelsInParallel() {
+        item.appendFromJson( "{ '$parallelIncludes': true, '$xml': 'model-01.xml, model-02.xml' }" );
+        assertEquals( "model-01", item.eval("$title") );
+        assertEquals( "1", item.eval("data[0].case") );
+        assertTrue( item.containsKey( "$$testStaticLambdas" ) );
+    }
+
+    @Test
+    public void copiesCachedIncludes() {
+        IncludeCache.SHARED.clear();
+        long hits = IncludeCache.SHARED.getHits();
+        long misses = IncludeCache.SHARED.getMisses();
+
+        item.appendFromJson( "{ '$cacheIncludes': true, '$xml': 'model-03-hierarchy.xml' }" );
+
+        // model-03-hierarchy.xml and the first cards-suit.xml are parsed, the other three suits are copies
+        assertEquals( 2, IncludeCache.SHARED.getMisses() - misses );
+        assertEquals( 3, IncludeCache.SHARED.getHits() - hits );
+
+        Model spades = item.getItem( "cards.spades" );
+        Model hearts = item.getItem( "cards.hearts" );
+        assertEquals( spades.keySet(), hearts.keySet() );
+        assertNotSame( spades.get( "ace" ), hearts.get( "ace" ) );
+        assertEquals( "cards.hearts.ace", hearts.getItem( "ace" ).path() );
+
+        item.eval("$self.testHierarchy01()" );
+    }
+
+    @Test
+    public void validatesNestedCachedIncludes() throws Exception {
+        Path directory = Files.createTempDirectory( "cached" );
+        directory.toFile().deleteOnExit();
+        Path outer = directory.resolve( "outer.json" );
+        Path inner = directory.resolve( "inner.json" );
+        outer.toFile().deleteOnExit();
+        inner.toFile().deleteOnExit();
+        Files.write( outer, "{ 'nested': { '$json': 'inner.json' } }".getBytes() );
+        Files.write( inner, "{ 'y': 1 }".getBytes() );
+
+        IncludeCache.SHARED.clear();
+        long hits = IncludeCache.SHARED.getHits();
+
+        item.setCurrentDirectory( directory );
+        item.appendFromJson( "{ '$cacheIncludes': true, 'a': { '$json': 'outer.json' }, 'b': { '$json': 'outer.json' } }" );
+
+        // the copy carries the nested source file and include record
+        assertEquals( 1, IncludeCache.SHARED.getHits() - hits );
+        assertEquals( 2, item.getSourceFiles().size() );
+        try ( ModelWatcher watcher = item.watchIncludes() )
+        {
+            assertTrue( watcher.getWatchedFiles().contains( inner.toFile() ) );
+        }
+
+        // changing the nested file invalidates the cached outer file
+        Files.write( inner, "{ 'y': 22 }".getBytes() );
+        ModelItem other = new ModelItem();
+        other.setCurrentDirectory( directory );
+        other.appendFromJson( "{ '$cacheIncludes': true, 'a': { '$json': 'outer.json' } }" );
+        assertEquals( 22, other.getItem( "a.nested" ).get( "y" ) );
+    }
+
     @Test
     public void testModelLambdas() {
         item.appendFromJson( "{ '$xml': 'model-01.xml' }" );